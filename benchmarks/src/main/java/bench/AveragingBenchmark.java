@@ -0,0 +1,77 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Averaging cost: the whole-image average which indexing calculates
+ * for every tile, and the per-cell averages of a goal image, read
+ * directly or through a summed-area table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AveragingBenchmark {
+    @Param({"512", "2048", "4096"})
+    int size;
+
+    @Param({"20"})
+    int tileSize;
+
+    private BufferedImage image;
+    private Object pixelKernel;
+    private Object summedAreaTable;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = Fixtures.image(size, size * 3 / 4, BufferedImage.TYPE_3BYTE_BGR);
+        pixelKernel = Mosaic.newPixelKernel();
+        summedAreaTable = Mosaic.newSummedAreaTable(image);
+    }
+
+    @Benchmark
+    public int wholeImage() {
+        return Mosaic.average(pixelKernel, image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    @Benchmark
+    public int cellsDirect() {
+        int hash = 0;
+        for (int y = 0; y + tileSize <= image.getHeight(); y += tileSize) {
+            for (int x = 0; x + tileSize <= image.getWidth(); x += tileSize)
+                hash += Mosaic.average(pixelKernel, image, x, y, x + tileSize, y + tileSize);
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public int cellsSummedAreaTable() {
+        int hash = 0;
+        for (int y = 0; y + tileSize <= image.getHeight(); y += tileSize) {
+            for (int x = 0; x + tileSize <= image.getWidth(); x += tileSize)
+                hash += Mosaic.regionAverage(summedAreaTable, x, y, x + tileSize, y + tileSize);
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public Object buildSummedAreaTable() {
+        return Mosaic.newSummedAreaTable(image);
+    }
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic tile libraries and goal images, made from a fixed
+ * seed so every run measures the same data.
+ */
+final class Fixtures {
+    static final long SEED = 42;
+
+    private Fixtures() {
+    }
+
+    /**
+     * A library of tiles with random colors, sorted by norm like an
+     * index is, with fake paths.
+     */
+    static ArrayList<Object> library(int tiles) {
+        Random random = new Random(SEED);
+        int[][] colors = new int[tiles][];
+
+        for (int i = 0; i < tiles; i++)
+            colors[i] = new int[]{random.nextInt(256), random.nextInt(256), random.nextInt(256)};
+
+        Arrays.sort(colors, Comparator.comparingInt(
+                (int[] c) -> c[0] * c[0] + c[1] * c[1] + c[2] * c[2]));
+
+        ArrayList<Object> images = new ArrayList<>(tiles);
+        for (int i = 0; i < tiles; i++)
+            images.add(Mosaic.newImage(colors[i][0], colors[i][1], colors[i][2],
+                    "/library/tile" + i + ".jpg"));
+
+        return images;
+    }
+
+    /**
+     * Random goal colors, packed as rgb values.
+     */
+    static int[] queries(int count) {
+        Random random = new Random(SEED + 1);
+        int[] queries = new int[count];
+
+        for (int i = 0; i < count; i++)
+            queries[i] = random.nextInt(1 << 24);
+
+        return queries;
+    }
+
+    /**
+     * An image with smooth gradients and some noise, so it looks a
+     * bit like a photo rather than white noise.
+     *
+     * @param type a BufferedImage type, decoded JPEGs are TYPE_3BYTE_BGR
+     */
+    static BufferedImage image(int width, int height, int type) {
+        Random random = new Random(SEED + width * 31L + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        int[] row = new int[width];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int blue = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                row[x] = red << 16 | green << 8 | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static File writeJpeg(BufferedImage image, File directory, String name) throws IOException {
+        File file = new File(directory, name);
+        ImageIO.write(image, "jpg", file);
+        return file;
+    }
+
+    static void delete(File directory) throws IOException {
+        if (directory == null || !directory.exists())
+            return;
+
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+}
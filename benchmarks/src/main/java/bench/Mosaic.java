@@ -0,0 +1,310 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The classes of the mosaic maker live in the default package, which
+ * can't be imported, and JMH doesn't accept benchmarks in the default
+ * package. So the benchmarks reach them through method handles kept
+ * in static final fields, which the JIT inlines like direct calls.
+ * Every class of the mosaic maker is seen as an Object here.
+ */
+final class Mosaic {
+    private static final Class<?> IMAGE = load("Image");
+    private static final Class<?> IMAGE_FINDER = load("ImageFinder");
+    private static final Class<?> PIXEL_KERNEL = load("PixelKernel");
+    private static final Class<?> SUMMED_AREA_TABLE = load("SummedAreaTable");
+    private static final Class<?> MOSAIC_IMAGE = load("MosaicImage");
+    private static final Class<?> TILE_CACHE = load("TileCache");
+    private static final Class<?> THUMBNAIL_ATLAS = load("ThumbnailAtlas");
+    private static final Class<?> IMAGE_PROCESSOR = load("ImageProcessor");
+
+    private static final MethodHandle NEW_IMAGE =
+            constructor(IMAGE, int.class, int.class, int.class);
+    private static final MethodHandle SET_PATH = setter(IMAGE, "path", String.class);
+    private static final MethodHandle SET_THUMBNAILS = setter(IMAGE, "thumbnails", byte[][].class);
+
+    private static final MethodHandle NEW_EXACT_FINDER =
+            constructor(IMAGE_FINDER, ArrayList.class);
+    private static final MethodHandle NEW_RADIUS_FINDER =
+            constructor(IMAGE_FINDER, ArrayList.class, int.class);
+    private static final MethodHandle SEARCH_INDEX =
+            method(IMAGE_FINDER, "searchIndex", int.class, int.class, int.class, int.class);
+
+    private static final MethodHandle NEW_PIXEL_KERNEL = constructor(PIXEL_KERNEL);
+    private static final MethodHandle AVERAGE = method(PIXEL_KERNEL, "average",
+            int.class, BufferedImage.class, int.class, int.class, int.class, int.class);
+    private static final MethodHandle REDUCE = method(PIXEL_KERNEL, "reduce",
+            void.class, BufferedImage.class, int.class, int.class, int[].class);
+
+    private static final MethodHandle NEW_SUMMED_AREA_TABLE =
+            constructor(SUMMED_AREA_TABLE, BufferedImage.class);
+    private static final MethodHandle REGION_AVERAGE = method(SUMMED_AREA_TABLE, "average",
+            int.class, int.class, int.class, int.class, int.class);
+
+    private static final MethodHandle NEW_TILE_CACHE = constructor(TILE_CACHE, long.class);
+    private static final MethodHandle NEW_MOSAIC_IMAGE = constructor(MOSAIC_IMAGE,
+            IMAGE_FINDER, TILE_CACHE, String.class, int.class, int.class);
+    private static final MethodHandle USE_ATLAS =
+            method(MOSAIC_IMAGE, "useAtlas", void.class, THUMBNAIL_ATLAS);
+    private static final MethodHandle SET_THREADS_NUMBER =
+            method(MOSAIC_IMAGE, "setThreadsNumber", void.class, int.class);
+    private static final MethodHandle MAKE_MOSAIC_IMAGE =
+            method(MOSAIC_IMAGE, "makeMosaicImage", void.class, File.class);
+
+    private static final MethodHandle WRITE_ATLAS = staticMethod(THUMBNAIL_ATLAS, "write",
+            boolean.class, File.class, int.class, int.class, int.class, List.class);
+    private static final MethodHandle OPEN_ATLAS = staticMethod(THUMBNAIL_ATLAS, "open",
+            THUMBNAIL_ATLAS, File.class, int.class, int.class, int.class);
+    private static final MethodHandle PACK = staticMethod(THUMBNAIL_ATLAS, "pack",
+            byte[].class, int[].class);
+
+    private static final MethodHandle NEW_IMAGE_PROCESSOR =
+            constructor(IMAGE_PROCESSOR, int[][].class);
+    private static final MethodHandle PROCESS =
+            method(IMAGE_PROCESSOR, "process", IMAGE, IMAGE);
+
+    private Mosaic() {
+    }
+
+    static Object newImage(int red, int green, int blue, String path) {
+        try {
+            Object image = NEW_IMAGE.invokeExact(red, green, blue);
+            SET_PATH.invokeExact(image, path);
+            return image;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setThumbnails(Object image, byte[][] thumbnails) {
+        try {
+            SET_THUMBNAILS.invokeExact(image, thumbnails);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @param radius 0 for the exact k-d tree search, otherwise the
+     *               radius of the norm search.
+     */
+    static Object newImageFinder(ArrayList<Object> images, int radius) {
+        try {
+            return radius == 0
+                    ? (Object) NEW_EXACT_FINDER.invokeExact(images)
+                    : (Object) NEW_RADIUS_FINDER.invokeExact(images, radius);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int searchIndex(Object imageFinder, int red, int green, int blue) {
+        try {
+            return (int) SEARCH_INDEX.invokeExact(imageFinder, red, green, blue);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newPixelKernel() {
+        try {
+            return (Object) NEW_PIXEL_KERNEL.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int average(Object pixelKernel, BufferedImage image,
+                       int startX, int startY, int endX, int endY) {
+        try {
+            return (int) AVERAGE.invokeExact(pixelKernel, image, startX, startY, endX, endY);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void reduce(Object pixelKernel, BufferedImage image,
+                       int tileWidth, int tileHeight, int[] tile) {
+        try {
+            REDUCE.invokeExact(pixelKernel, image, tileWidth, tileHeight, tile);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static byte[] pack(int[] tile) {
+        try {
+            return (byte[]) PACK.invokeExact(tile);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newSummedAreaTable(BufferedImage image) {
+        try {
+            return (Object) NEW_SUMMED_AREA_TABLE.invokeExact(image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int regionAverage(Object table, int startX, int startY, int endX, int endY) {
+        try {
+            return (int) REGION_AVERAGE.invokeExact(table, startX, startY, endX, endY);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newTileCache(long budget) {
+        try {
+            return (Object) NEW_TILE_CACHE.invokeExact(budget);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newMosaicImage(Object imageFinder, Object tileCache, String path,
+                                 int mosaicWidth, int mosaicHeight, int threadsNumber) {
+        try {
+            Object mosaicImage = NEW_MOSAIC_IMAGE.invokeExact(imageFinder, tileCache,
+                    path, mosaicWidth, mosaicHeight);
+            SET_THREADS_NUMBER.invokeExact(mosaicImage, threadsNumber);
+            return mosaicImage;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void useAtlas(Object mosaicImage, Object atlas) {
+        try {
+            USE_ATLAS.invokeExact(mosaicImage, atlas);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void makeMosaicImage(Object mosaicImage, File output) {
+        try {
+            MAKE_MOSAIC_IMAGE.invokeExact(mosaicImage, output);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object writeAndOpenAtlas(File file, int width, int height,
+                                    ArrayList<Object> images) {
+        try {
+            boolean written = (boolean) WRITE_ATLAS.invokeExact(file, width, height, 0,
+                    (List<?>) images);
+            if (!written)
+                throw new IllegalStateException("Some tiles are missing");
+
+            return (Object) OPEN_ATLAS.invokeExact(file, width, height, images.size());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newImageProcessor(int[][] tileSizes) {
+        try {
+            return (Object) NEW_IMAGE_PROCESSOR.invokeExact(tileSizes);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object process(Object imageProcessor, Object image) {
+        try {
+            return (Object) PROCESS.invokeExact(imageProcessor, image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookup(Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    // Every class of the mosaic maker is erased to Object
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (type.parameterType(i).getPackageName().isEmpty()
+                    && !type.parameterType(i).isPrimitive()
+                    && !type.parameterType(i).isArray())
+                erased = erased.changeParameterType(i, Object.class);
+        }
+
+        Class<?> returnType = type.returnType();
+        if (returnType.getPackageName().isEmpty()
+                && !returnType.isPrimitive() && !returnType.isArray())
+            erased = erased.changeReturnType(Object.class);
+
+        return erased;
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findConstructor(type,
+                    MethodType.methodType(void.class, parameters));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?> returnType,
+                                       Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findVirtual(type, name,
+                    MethodType.methodType(returnType, parameters));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> type, String name, Class<?> returnType,
+                                             Class<?>... parameters) {
+        try {
+            MethodHandle handle = lookup(type).findStatic(type, name,
+                    MethodType.methodType(returnType, parameters));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle setter(Class<?> type, String name, Class<?> fieldType) {
+        try {
+            MethodHandle handle = lookup(type).findSetter(type, name, fieldType);
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a library image into a tile: reducing an already
+ * decoded image, and the whole indexing step of a JPEG file, which
+ * decodes it, averages it and reduces it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReduceBenchmark {
+    @Param({"10", "20", "40"})
+    int tileSize;
+
+    @Param({"1024"})
+    int imageWidth;
+
+    private File directory;
+    private BufferedImage image;
+    private Object pixelKernel;
+    private Object imageProcessor;
+    private Object jpeg;
+    private int[] tile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("reduce-benchmark").toFile();
+        image = Fixtures.image(imageWidth, imageWidth * 3 / 4, BufferedImage.TYPE_3BYTE_BGR);
+
+        File file = Fixtures.writeJpeg(image, directory, "tile.jpg");
+        jpeg = Mosaic.newImage(0, 0, 0, file.getAbsolutePath());
+
+        pixelKernel = Mosaic.newPixelKernel();
+        imageProcessor = Mosaic.newImageProcessor(new int[][]{{tileSize, tileSize}});
+        tile = new int[tileSize * tileSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int[] reduceDecoded() {
+        Mosaic.reduce(pixelKernel, image, tileSize, tileSize, tile);
+        return tile;
+    }
+
+    @Benchmark
+    public Object processJpeg() {
+        return Mosaic.process(imageProcessor, jpeg);
+    }
+}
@@ -0,0 +1,95 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end MosaicImage.makeMosaicImage over a synthetic library
+ * whose tiles come from an atlas, so the library doesn't need
+ * thousands of image files.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"10000", "100000"})
+    int tiles;
+
+    @Param({"1024", "4096"})
+    int targetWidth;
+
+    @Param({"10", "20"})
+    int tileSize;
+
+    @Param({"0", "200"})
+    int radius;
+
+    @Param({"1", "4"})
+    int threads;
+
+    private File directory;
+    private File target;
+    private File output;
+    private Object imageFinder;
+    private Object atlas;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("render-benchmark").toFile();
+
+        ArrayList<Object> images = Fixtures.library(tiles);
+        Random random = new Random(Fixtures.SEED);
+        int[] pixels = new int[tileSize * tileSize];
+
+        for (Object image : images) {
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = random.nextInt(1 << 24);
+            Mosaic.setThumbnails(image, new byte[][]{Mosaic.pack(pixels)});
+        }
+
+        atlas = Mosaic.writeAndOpenAtlas(new File(directory, "atlas.bin"),
+                tileSize, tileSize, images);
+        imageFinder = Mosaic.newImageFinder(images, radius);
+
+        target = Fixtures.writeJpeg(Fixtures.image(targetWidth, targetWidth * 3 / 4,
+                BufferedImage.TYPE_INT_RGB), directory, "target.jpg");
+        output = new File(directory, "MosaicImage.bmp");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public File makeMosaicImage() {
+        Object mosaicImage = Mosaic.newMosaicImage(imageFinder,
+                Mosaic.newTileCache(64L << 20), target.getAbsolutePath(),
+                tileSize, tileSize, threads);
+        Mosaic.useAtlas(mosaicImage, atlas);
+        Mosaic.makeMosaicImage(mosaicImage, output);
+        return output;
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-cell lookup cost of ImageFinder.searchIndex over synthetic
+ * libraries. A radius of 0 is the exact k-d tree search, the others
+ * are the norm search with that radius.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    int tiles;
+
+    @Param({"0", "50", "200"})
+    int radius;
+
+    private Object imageFinder;
+    private int[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        imageFinder = Mosaic.newImageFinder(Fixtures.library(tiles), radius);
+        queries = Fixtures.queries(1 << 16);
+    }
+
+    @Benchmark
+    public int searchIndex() {
+        int rgb = queries[next++ & (queries.length - 1)];
+
+        return Mosaic.searchIndex(imageFinder,
+                (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    }
+}
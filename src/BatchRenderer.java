@@ -0,0 +1,197 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Makes the mosaic images of many goal images with one Library, so
+ * the index is loaded once and every job shares its tile cache.
+ * Jobs are run by a fixed number of threads, so only that many
+ * goal images are in memory at the same time, and the threads
+ * of every job make its rows in parallel.
+ */
+class BatchRenderer {
+    private final Library library;
+    private final int jobsNumber;
+    private final int threadsNumber;
+    private int maxUses;
+    private int repeatDistance;
+
+    /**
+     * A goal image, where its mosaic image goes and its tile size.
+     */
+    static class Job {
+        final String target;
+        final File output;
+        final int mosaicWidth;
+        final int mosaicHeight;
+
+        Job(String target, File output, int mosaicWidth, int mosaicHeight) {
+            this.target = target;
+            this.output = output;
+            this.mosaicWidth = mosaicWidth;
+            this.mosaicHeight = mosaicHeight;
+        }
+    }
+
+    /**
+     * @param library       ..
+     * @param jobsNumber    is the number of jobs made at the same time.
+     * @param threadsNumber is the number of threads of every job.
+     */
+    BatchRenderer(Library library, int jobsNumber, int threadsNumber) {
+        this.library = library;
+        this.jobsNumber = jobsNumber;
+        this.threadsNumber = threadsNumber;
+    }
+
+    /**
+     * Limits the use of images in every job, see
+     * MosaicImage.setUsageLimits().
+     *
+     * @param maxUses        ..
+     * @param repeatDistance ..
+     */
+    void setUsageLimits(int maxUses, int repeatDistance) {
+        this.maxUses = maxUses;
+        this.repeatDistance = repeatDistance;
+    }
+
+    /**
+     * Reads a manifest, every line of it is a job, with the goal image,
+     * the output file and optionally the tile size, separated by tabs:
+     * <pre>
+     * photos/cat.jpg	out/cat.bmp
+     * photos/dog.jpg	out/dog.bmp	40x30
+     * </pre>
+     * Empty lines and lines starting with # are skipped.
+     *
+     * @param manifest     ..
+     * @param mosaicWidth  tile width of jobs without a tile size
+     * @param mosaicHeight tile height of jobs without a tile size
+     * @return the jobs
+     * @throws IOException if the manifest can't be read or a line is wrong
+     */
+    static List<Job> readManifest(File manifest, int mosaicWidth,
+                                  int mosaicHeight) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            int number = 0;
+
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] fields = line.split("\t");
+                if (fields.length < 2 || fields.length > 3)
+                    throw new IOException(manifest + ":" + number +
+                            ": expected target, output and an optional tile size");
+
+                int width = mosaicWidth;
+                int height = mosaicHeight;
+
+                if (fields.length == 3) {
+                    String[] size = fields[2].trim().split("x");
+                    try {
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[size.length - 1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException(manifest + ":" + number +
+                                ": wrong tile size " + fields[2]);
+                    }
+
+                    if (width <= 0 || height <= 0 || size.length > 2)
+                        throw new IOException(manifest + ":" + number +
+                                ": wrong tile size " + fields[2]);
+                }
+
+                jobs.add(new Job(fields[0].trim(), new File(fields[1].trim()),
+                        width, height));
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Tile sizes used by the jobs, with the given ones first,
+     * without duplicates.
+     *
+     * @param tileSizes ..
+     * @param jobs      ..
+     * @return tile sizes
+     */
+    static int[][] tileSizes(int[][] tileSizes, List<Job> jobs) {
+        List<int[]> sizes = new ArrayList<>();
+
+        for (int[] size : tileSizes)
+            addSize(sizes, size[0], size[1]);
+        for (Job job : jobs)
+            addSize(sizes, job.mosaicWidth, job.mosaicHeight);
+
+        return sizes.toArray(new int[0][]);
+    }
+
+    private static void addSize(List<int[]> sizes, int width, int height) {
+        for (int[] size : sizes) {
+            if (size[0] == width && size[1] == height)
+                return;
+        }
+        sizes.add(new int[]{width, height});
+    }
+
+    /**
+     * Makes the mosaic image of every job, a job which fails is
+     * reported and doesn't stop the others.
+     *
+     * @param jobs ..
+     * @return number of failed jobs
+     */
+    int render(List<Job> jobs) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobsNumber);
+        List<Callable<Void>> tasks = new ArrayList<>(jobs.size());
+
+        for (Job job : jobs) {
+            tasks.add(() -> {
+                MosaicImage mosaicImage = library.newMosaicImage(job.target,
+                        job.mosaicWidth, job.mosaicHeight);
+                mosaicImage.setThreadsNumber(threadsNumber);
+                mosaicImage.setUsageLimits(maxUses, repeatDistance);
+                mosaicImage.makeMosaicImage(job.output);
+                return null;
+            });
+        }
+
+        int failed = 0;
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    System.err.println("Can't make the mosaic image of " +
+                            jobs.get(i).target + ": " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = jobs.size();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return failed;
+    }
+}
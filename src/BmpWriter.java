@@ -0,0 +1,106 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a 24 bits BMP file row by row, so a mosaic image can be
+ * written while it's being made, without holding all of it.
+ * The rows are stored from top to bottom, which BMP tells by a
+ * negative height, so we never need to go back in the file.
+ */
+class BmpWriter implements Closeable {
+    private static final int HEADER_SIZE = 54;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] line;
+    private int written;
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param file   ..
+     * @param width  width of the image
+     * @param height height of the image
+     * @throws IOException ..
+     */
+    BmpWriter(File file, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+
+        // Every row is padded to a multiple of 4 bytes
+        this.line = new byte[(3 * width + 3) & ~3];
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+
+        long imageSize = (long) line.length * height;
+        long fileSize = HEADER_SIZE + imageSize;
+
+        // The sizes of a file bigger than 4GB can't be written,
+        // 0 is allowed for them and readers don't need them.
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = 'B';
+        header[1] = 'M';
+        putInt(header, 2, fileSize > 0xFFFFFFFFL ? 0 : (int) fileSize);
+        putInt(header, 10, HEADER_SIZE);
+        putInt(header, 14, 40);
+        putInt(header, 18, width);
+        putInt(header, 22, -height); // top-down
+        header[26] = 1; // planes
+        header[28] = 24; // bits per pixel
+        putInt(header, 34, imageSize > 0xFFFFFFFFL ? 0 : (int) imageSize);
+        putInt(header, 38, 2835); // 72 dpi
+        putInt(header, 42, 2835);
+
+        out.write(header);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Appends the first rows of an image to the file.
+     *
+     * @param image must be as wide as the file
+     * @param rows  number of rows to write
+     * @throws IOException ..
+     */
+    void writeRows(BufferedImage image, int rows) throws IOException {
+        if (written + rows > height)
+            throw new IOException("Too many rows for the BMP file: " + (written + rows));
+
+        PixelKernel pixelKernel = new PixelKernel();
+
+        for (int y = 0; y < rows; y++) {
+            int[] row = pixelKernel.readRow(image, y);
+
+            for (int x = 0, i = 0; x < width; x++) {
+                int rgb = row[x];
+
+                line[i++] = (byte) rgb;
+                line[i++] = (byte) (rgb >> 8);
+                line[i++] = (byte) (rgb >> 16);
+            }
+            out.write(line);
+        }
+
+        written += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+
+        if (written != height)
+            throw new IOException("Only " + written + " of " + height
+                    + " rows are written into the BMP file");
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.IntStream;
+
+/**
+ * There are only 256 * 256 * 256 colors that a mosaic square can
+ * have, so we can search all of them once and remember the answer.
+ * The colors can be quantized to fewer bits per channel to make the
+ * table smaller, then every color of a cell shares the answer of
+ * the cell's center.
+ * The table is saved next to index.bin and memory-mapped when
+ * we run again, it's only rebuilt if the index has changed: its
+ * last modified time and length are kept in the header.
+ */
+class ColorLookupTable {
+    private static final int MAGIC = 0x4D4C5554; // "MLUT"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+
+    private final int bits;
+    private final int shift;
+    private final IntBuffer table;
+
+    private ColorLookupTable(int bits, MappedByteBuffer buffer) {
+        this.bits = bits;
+        this.shift = 8 - bits;
+
+        buffer.position(HEADER_SIZE);
+        this.table = buffer.slice().asIntBuffer();
+    }
+
+    /**
+     * The name of the table file, since tables with different
+     * bits can live in the same directory.
+     *
+     * @param bits bits per channel
+     * @return file name
+     */
+    static String fileName(int bits) {
+        return "lookup" + bits + ".bin";
+    }
+
+    /**
+     * Maps the table file if it matches the library, or builds
+     * a new one with the finder.
+     *
+     * @param file   is the table file.
+     * @param bits   bits per channel, from 1 to 8.
+     * @param index  is index.bin, the table is built again when
+     *               it changes.
+     * @param finder is used to search every color of the table, it
+     *               must not use a lookup table itself.
+     * @return ColorLookupTable object
+     * @throws IOException ..
+     */
+    static ColorLookupTable open(File file, int bits, File index,
+                                 ImageFinder finder) throws IOException {
+        if (bits < 1 || bits > 8)
+            throw new IllegalArgumentException("bits must be from 1 to 8: " + bits);
+
+        long lastModified = index.lastModified();
+        long length = index.length();
+
+        if (!matches(file, bits, lastModified, length, finder.size()))
+            build(file, bits, lastModified, length, finder);
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            return new ColorLookupTable(bits,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Checks the header of an existing table
+    private static boolean matches(File file, int bits, long lastModified, long length,
+                                   int imagesNumber) throws IOException {
+        if (!file.isFile() || file.length() != HEADER_SIZE + 4L * cells(bits))
+            return false;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+
+            return header.getInt() == MAGIC &&
+                    header.getInt() == VERSION &&
+                    header.getInt() == bits &&
+                    header.getInt() == imagesNumber &&
+                    header.getLong() == lastModified &&
+                    header.getLong() == length;
+        }
+    }
+
+    /**
+     * Searches the center color of every cell of the cube in parallel
+     * and writes the results into a temporary file, which replaces
+     * the old table when it's finished.
+     */
+    private static void build(File file, int bits, long lastModified, long length,
+                              ImageFinder finder) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        int side = 1 << bits;
+        int shift = 8 - bits;
+        int half = (1 << shift) >> 1;
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, HEADER_SIZE + 4L * cells(bits));
+
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(bits)
+                    .putInt(finder.size())
+                    .putLong(lastModified)
+                    .putLong(length);
+
+            IntBuffer table = buffer.slice().asIntBuffer();
+
+            // Each red plane is written by one task, and they never
+            // touch the same entries.
+            IntStream.range(0, side).parallel().forEach(r -> {
+                for (int g = 0; g < side; g++) {
+                    for (int b = 0; b < side; b++) {
+                        table.put((r << (2 * bits)) | (g << bits) | b,
+                                finder.searchIndex(
+                                        (r << shift) + half,
+                                        (g << shift) + half,
+                                        (b << shift) + half));
+                    }
+                }
+            });
+
+            buffer.force();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int cells(int bits) {
+        return 1 << (3 * bits);
+    }
+
+    /**
+     * @param red   ..
+     * @param green ..
+     * @param blue  ..
+     * @return list index of the most similar image.
+     */
+    int lookup(int red, int green, int blue) {
+        return table.get(((red >> shift) << (2 * bits)) |
+                ((green >> shift) << bits) |
+                (blue >> shift));
+    }
+}
@@ -0,0 +1,425 @@
+/**
+ * A k-d tree over the rgb values of all images of a TileStore. The norm is
+ * not enough to tell two colors apart, (255, 0, 0) and (0, 0, 255)
+ * have the same norm, so here we split the color cube itself by
+ * red, green and blue in turn, and the nearest color can be found
+ * exactly in about log(N) steps.
+ * The tree is stored implicitly: the node of a range [low, high) of
+ * the nodes array is its middle element, the left child is the range
+ * [low, middle) and the right child is [middle + 1, high).
+ */
+class ColorTree {
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    private final int[] nodes; // list indices arranged as a tree
+    private int[] positions;   // where every list index is in nodes
+
+    /**
+     * Builds the tree from the colors of a TileStore, which are
+     * read from its arrays, so the store must not change any more.
+     * The result of a search is an index of the store.
+     *
+     * @param tiles ..
+     */
+    ColorTree(TileStore tiles) {
+        this(tiles.reds(), tiles.greens(), tiles.blues(), tiles.size());
+    }
+
+    /**
+     * Builds the tree from points which are not colors, like the
+     * sums of the colors of a grid, the arrays are kept as they are.
+     *
+     * @param red   first coordinate of every point
+     * @param green second coordinate of every point
+     * @param blue  third coordinate of every point
+     */
+    ColorTree(int[] red, int[] green, int[] blue) {
+        this(red, green, blue, red.length);
+    }
+
+    /**
+     * Same as ColorTree(int[], int[], int[]), but only the
+     * first points of the arrays are in the tree.
+     *
+     * @param red   ..
+     * @param green ..
+     * @param blue  ..
+     * @param size  number of points
+     */
+    ColorTree(int[] red, int[] green, int[] blue, int size) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+        this.nodes = new int[size];
+
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i] = i;
+
+        build(0, nodes.length, 0);
+    }
+
+    /**
+     * A distance between the goal and a point which is never smaller
+     * than their squared Euclidean distance in the tree, so the tree
+     * can skip the points which are too far from the goal.
+     */
+    interface Distance {
+        /**
+         * @param index list index of the point
+         * @param limit the best distance so far
+         * @return the distance, or anything not smaller than the limit
+         * if it's not smaller.
+         */
+        int distance(int index, int limit);
+    }
+
+    /**
+     * Arranges the range [low, high) so that its middle element is
+     * the median of the given axis, then does the same to both halves
+     * with the next axis.
+     *
+     * @param low   start of the range
+     * @param high  end of the range, exclusive
+     * @param depth depth of the node, decides the axis
+     */
+    private void build(int low, int high, int depth) {
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            int[] axis = axis(depth);
+
+            select(axis, low, high - 1, middle);
+            build(low, middle, depth + 1);
+
+            // The right half is handled by the loop itself
+            low = middle + 1;
+            depth++;
+        }
+    }
+
+    /**
+     * Quickselect, after this method the k-th element of [left, right]
+     * is in its sorted place, smaller ones are before it and bigger
+     * ones are after it.
+     */
+    private void select(int[] axis, int left, int right, int k) {
+        while (right > left) {
+            int pivot = axis[nodes[(left + right) >>> 1]];
+            int i = left;
+            int j = right;
+
+            while (i <= j) {
+                while (axis[nodes[i]] < pivot)
+                    i++;
+                while (axis[nodes[j]] > pivot)
+                    j--;
+
+                if (i <= j) {
+                    int tmp = nodes[i];
+                    nodes[i] = nodes[j];
+                    nodes[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k <= j)
+                right = j;
+            else if (k >= i)
+                left = i;
+            else
+                return;
+        }
+    }
+
+    private int[] axis(int depth) {
+        switch (depth % 3) {
+            case 0:
+                return red;
+            case 1:
+                return green;
+            default:
+                return blue;
+        }
+    }
+
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Points which are removed from the searches that are given it,
+     * like tiles which have been used too often. A removed point is
+     * never returned, and a subtree without points is skipped, so
+     * searches don't slow down as points are removed.
+     * A Mask is only for one thread, the tree itself is not changed.
+     */
+    class Mask {
+        private final int[] alive;       // points left under every node
+        private final boolean[] removed; // by list index
+        private int size;
+
+        private Mask() {
+            alive = new int[nodes.length];
+            removed = new boolean[nodes.length];
+            size = nodes.length;
+            count(0, nodes.length);
+        }
+
+        private void count(int low, int high) {
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                alive[middle] = high - low;
+
+                count(low, middle);
+                low = middle + 1;
+            }
+        }
+
+        /**
+         * @param index list index of the point
+         */
+        void remove(int index) {
+            if (removed[index])
+                return;
+
+            removed[index] = true;
+            size--;
+
+            // Every node from the root down to the point loses it
+            int position = positions()[index];
+            int low = 0;
+            int high = nodes.length;
+
+            while (true) {
+                int middle = (low + high) >>> 1;
+                alive[middle]--;
+
+                if (position == middle)
+                    return;
+                if (position < middle)
+                    high = middle;
+                else
+                    low = middle + 1;
+            }
+        }
+
+        boolean isRemoved(int index) {
+            return removed[index];
+        }
+
+        /**
+         * @return number of points left
+         */
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * @return a Mask without removed points
+     */
+    Mask newMask() {
+        return new Mask();
+    }
+
+    private synchronized int[] positions() {
+        if (positions == null) {
+            int[] array = new int[nodes.length];
+            for (int p = 0; p < nodes.length; p++)
+                array[nodes[p]] = p;
+            positions = array;
+        }
+        return positions;
+    }
+
+    /**
+     * Finds the k nearest points which are not removed, k is the
+     * length of result, nearer ones come first.
+     *
+     * @param red      ..
+     * @param green    ..
+     * @param blue     ..
+     * @param distance null for the Euclidean distance
+     * @param mask     removed points, or null
+     * @param result   is filled with list indices
+     * @return number of points found, smaller than k only if there
+     * are not enough points.
+     */
+    int nearest(int red, int green, int blue, Distance distance,
+                Mask mask, int[] result) {
+        Neighbors neighbors = new Neighbors(result);
+
+        searchNeighbors(0, nodes.length, 0, red, green, blue,
+                distance, mask, neighbors);
+        return neighbors.found;
+    }
+
+    // The k nearest points found so far, sorted by distance
+    private static class Neighbors {
+        final int[] indices;
+        final int[] distances;
+        int found;
+
+        Neighbors(int[] indices) {
+            this.indices = indices;
+            this.distances = new int[indices.length];
+        }
+
+        int limit() {
+            return found < indices.length ? Integer.MAX_VALUE : distances[found - 1];
+        }
+
+        void add(int index, int distance) {
+            int i = found < indices.length ? found++ : found - 1;
+
+            for (; i > 0 && distances[i - 1] > distance; i--) {
+                indices[i] = indices[i - 1];
+                distances[i] = distances[i - 1];
+            }
+            indices[i] = index;
+            distances[i] = distance;
+        }
+    }
+
+    private void searchNeighbors(int low, int high, int depth,
+                                 int goalRed, int goalGreen, int goalBlue,
+                                 Distance metric, Mask mask, Neighbors neighbors) {
+        if (low >= high || neighbors.indices.length == 0)
+            return;
+
+        int middle = (low + high) >>> 1;
+        if (mask != null && mask.alive[middle] == 0)
+            return;
+
+        int index = nodes[middle];
+
+        int dr = red[index] - goalRed;
+        int dg = green[index] - goalGreen;
+        int db = blue[index] - goalBlue;
+
+        if (mask == null || !mask.removed[index]) {
+            int limit = neighbors.limit();
+            int distance = dr * dr + dg * dg + db * db;
+
+            if (metric != null && distance < limit)
+                distance = metric.distance(index, limit);
+
+            if (distance < limit)
+                neighbors.add(index, distance);
+        }
+
+        int diff;
+        switch (depth % 3) {
+            case 0:
+                diff = -dr;
+                break;
+            case 1:
+                diff = -dg;
+                break;
+            default:
+                diff = -db;
+        }
+
+        if (diff < 0) {
+            searchNeighbors(low, middle, depth + 1,
+                    goalRed, goalGreen, goalBlue, metric, mask, neighbors);
+            if (diff * diff < neighbors.limit())
+                searchNeighbors(middle + 1, high, depth + 1,
+                        goalRed, goalGreen, goalBlue, metric, mask, neighbors);
+        } else {
+            searchNeighbors(middle + 1, high, depth + 1,
+                    goalRed, goalGreen, goalBlue, metric, mask, neighbors);
+            if (diff * diff < neighbors.limit())
+                searchNeighbors(low, middle, depth + 1,
+                        goalRed, goalGreen, goalBlue, metric, mask, neighbors);
+        }
+    }
+
+    /**
+     * Finds the color which has the smallest Euclidean distance
+     * to the given one.
+     *
+     * @param red   ..
+     * @param green ..
+     * @param blue  ..
+     * @return list index, or -1 if the tree is empty.
+     */
+    int nearest(int red, int green, int blue) {
+        return nearest(red, green, blue, null);
+    }
+
+    /**
+     * Same as nearest(int, int, int), but the points are compared
+     * by the given distance.
+     *
+     * @param red      ..
+     * @param green    ..
+     * @param blue     ..
+     * @param distance null for the Euclidean distance
+     * @return list index, or -1 if the tree is empty.
+     */
+    int nearest(int red, int green, int blue, Distance distance) {
+        // best[0] is the list index, best[1] is its distance
+        int[] best = {-1, Integer.MAX_VALUE};
+
+        search(0, nodes.length, 0, red, green, blue, distance, best);
+        return best[0];
+    }
+
+    private void search(int low, int high, int depth,
+                        int goalRed, int goalGreen, int goalBlue,
+                        Distance metric, int[] best) {
+        if (low >= high)
+            return;
+
+        int middle = (low + high) >>> 1;
+        int index = nodes[middle];
+
+        int dr = red[index] - goalRed;
+        int dg = green[index] - goalGreen;
+        int db = blue[index] - goalBlue;
+        int distance = dr * dr + dg * dg + db * db;
+
+        // The given distance is only asked when the point can be better
+        if (metric != null && distance < best[1])
+            distance = metric.distance(index, best[1]);
+
+        if (distance < best[1]) {
+            best[1] = distance;
+            best[0] = index;
+
+            if (distance == 0)
+                return;
+        }
+
+        int diff;
+        switch (depth % 3) {
+            case 0:
+                diff = -dr;
+                break;
+            case 1:
+                diff = -dg;
+                break;
+            default:
+                diff = -db;
+        }
+
+        // Goes down the side where the goal is at first, the other
+        // side is only worth visiting if the splitting plane is
+        // closer than the best one we have found.
+        if (diff < 0) {
+            search(low, middle, depth + 1,
+                    goalRed, goalGreen, goalBlue, metric, best);
+            if (diff * diff < best[1])
+                search(middle + 1, high, depth + 1,
+                        goalRed, goalGreen, goalBlue, metric, best);
+        } else {
+            search(middle + 1, high, depth + 1,
+                    goalRed, goalGreen, goalBlue, metric, best);
+            if (diff * diff < best[1])
+                search(low, middle, depth + 1,
+                        goalRed, goalGreen, goalBlue, metric, best);
+        }
+    }
+}
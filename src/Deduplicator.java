@@ -0,0 +1,420 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds copies of the same photo among the images of an index, like
+ * re-exports and resized versions, so only one of them takes a place
+ * in the atlases and in every search. Exact copies have the same
+ * content hash; near copies have perceptual hashes which differ in a
+ * few bits and almost the same average color. The one we keep is the
+ * biggest file, the others are written as duplicates, after the failed
+ * images, so they are not processed again until their file changes.
+ * <p>
+ * Near copies are found without comparing every pair: a hash is cut
+ * into more bands than the bits two near copies may differ in, so
+ * they have at least one band in common. Images are sorted by every
+ * band in turn, and only the ones next to each other are compared.
+ * The best image keeps the near ones around it, then the best of the
+ * images left, and so on, so every near copy is within the limits of
+ * the image it's collapsed into, not just of another copy.
+ * <p>
+ * The images are given twice, in the same order: once to add() them
+ * before decide(), then to keptOf() them while the index is written.
+ */
+class Deduplicator {
+    static final String HASHES_NAME = "hashes.bin";
+    static final String REPORT_NAME = "duplicates.txt";
+    static final int DUPLICATE_NORM = -200;
+    private static final int MAGIC = 0x4D485348; // "MHSH"
+
+    // Bits two perceptual hashes of near copies may differ in, and
+    // how far apart their average colors may be, flat images all
+    // have the same hash.
+    private final static int nearBits = 4;
+    private final static int colorDistance = 12;
+
+    // Images before it in a band an image is compared with, so a
+    // band shared by very many images doesn't take forever.
+    private final static int window = 32;
+
+    // Bits of a position in the sort keys
+    private static final int POSITION_BITS = 28;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    // Kinds of images
+    private static final byte CANDIDATE = 0; // has tiles, can be kept
+    private static final byte MARKED = 1;    // a copy last time, has no tiles
+    private static final byte UNKNOWN = 2;   // failed, or we have no hashes
+
+    // Results of keptOf()
+    static final int NOT_DUPLICATE = -1;
+    static final int DROPPED = -2;
+
+    private long[] contentHashes = new long[1024];
+    private long[] dHashes = new long[1024];
+    private long[] lengths = new long[1024];
+    private int[] colors = new int[1024];
+    private byte[] kinds = new byte[1024];
+    private int size;
+
+    private int[] parents;
+    private int[] kept;
+    private int[] storeIndexes;
+    private int duplicates;
+    private int exact;
+    private final List<String> dropped = new ArrayList<>();
+
+    /**
+     * @param image the next image of the index, in the order of
+     *              the index.
+     */
+    void add(Image image) {
+        if (size == kinds.length) {
+            int capacity = 2 * size;
+            contentHashes = Arrays.copyOf(contentHashes, capacity);
+            dHashes = Arrays.copyOf(dHashes, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+        }
+
+        if (size > POSITION_MASK)
+            throw new IllegalStateException("Too many images to find copies of");
+
+        contentHashes[size] = image.contentHash;
+        dHashes[size] = image.dHash;
+        lengths[size] = image.length;
+        colors[size] = image.red << 16 | image.green << 8 | image.blue;
+
+        if (image.contentHash == 0 && image.dHash == 0)
+            kinds[size] = UNKNOWN;
+        else if (image.norm > 0)
+            kinds[size] = CANDIDATE;
+        else if (image.norm == DUPLICATE_NORM)
+            kinds[size] = MARKED;
+        else
+            kinds[size] = UNKNOWN;
+
+        size++;
+    }
+
+    /**
+     * Groups the copies, once all images are added.
+     */
+    void decide() {
+        parents = new int[size];
+        for (int i = 0; i < size; i++)
+            parents[i] = i;
+
+        long[] keys = new long[size];
+
+        // Exact copies, sorted by their content hash
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (kinds[i] != UNKNOWN)
+                keys[count++] = (contentHashes[i] >>> POSITION_BITS) << POSITION_BITS | i;
+        }
+        Arrays.sort(keys, 0, count);
+
+        for (int k = 1; k < count; k++) {
+            int a = (int) (keys[k] & POSITION_MASK);
+            for (int l = k - 1; l >= Math.max(0, k - window) &&
+                    (keys[l] >>> POSITION_BITS) == (keys[k] >>> POSITION_BITS); l--) {
+                int b = (int) (keys[l] & POSITION_MASK);
+                if (contentHashes[a] == contentHashes[b]) {
+                    union(a, b);
+                    break;
+                }
+            }
+        }
+
+        // The best of a group of exact copies stands for all of them
+        int[] best = new int[size];
+        Arrays.fill(best, -1);
+        for (int i = 0; i < size; i++) {
+            if (kinds[i] == UNKNOWN)
+                continue;
+
+            int root = find(i);
+            if (best[root] < 0 || isBetter(i, best[root]))
+                best[root] = i;
+        }
+
+        int groups = 0;
+        for (int i = 0; i < size; i++) {
+            if (kinds[i] != UNKNOWN && best[find(i)] == i)
+                keys[groups++] = i;
+        }
+
+        // Near copies, sorted by every band of their perceptual hash
+        int bands = nearBits + 1;
+        int[][] orders = new int[bands][groups];
+        int[][] ranks = new int[bands][size];
+
+        for (int band = 0; band < bands; band++) {
+            long[] bandKeys = new long[groups];
+            for (int k = 0; k < groups; k++)
+                bandKeys[k] = band(band, (int) keys[k]) << POSITION_BITS | keys[k];
+            Arrays.sort(bandKeys);
+
+            for (int k = 0; k < groups; k++) {
+                orders[band][k] = (int) (bandKeys[k] & POSITION_MASK);
+                ranks[band][orders[band][k]] = k;
+            }
+        }
+
+        // The best image which is left keeps the ones near it. Every
+        // copy is compared with the one it's collapsed into, so a chain
+        // of images which are each near the next, like shades of a flat
+        // color, doesn't collapse into one.
+        Integer[] order = new Integer[groups];
+        for (int k = 0; k < groups; k++)
+            order[k] = (int) keys[k];
+        Arrays.sort(order, (first, second) -> isBetter(first, second) ? -1
+                : isBetter(second, first) ? 1 : Integer.compare(first, second));
+
+        int[] centers = new int[size];
+        Arrays.fill(centers, -1);
+
+        for (int center : order) {
+            if (centers[center] >= 0)
+                continue;
+            centers[center] = center;
+
+            for (int band = 0; band < bands; band++) {
+                long value = band(band, center);
+                int k = ranks[band][center];
+
+                for (int l = k - 1; l >= Math.max(0, k - window) &&
+                        band(band, orders[band][l]) == value; l--)
+                    join(center, orders[band][l], centers);
+
+                for (int l = k + 1; l <= Math.min(groups - 1, k + window) &&
+                        band(band, orders[band][l]) == value; l++)
+                    join(center, orders[band][l], centers);
+            }
+        }
+
+        // A copy whose group has nothing to keep any more, because the
+        // kept one is gone, is dropped and indexed again next time.
+        kept = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (kinds[i] == UNKNOWN) {
+                kept[i] = NOT_DUPLICATE;
+                continue;
+            }
+
+            int keep = centers[best[find(i)]];
+
+            if (kinds[keep] != CANDIDATE) {
+                kept[i] = DROPPED;
+            } else if (keep == i) {
+                kept[i] = NOT_DUPLICATE;
+            } else {
+                kept[i] = keep;
+                duplicates++;
+                if (contentHashes[i] == contentHashes[keep])
+                    exact++;
+            }
+        }
+
+        parents = null;
+        storeIndexes = new int[size];
+    }
+
+    // An image we can keep, or else a bigger file, is better
+    private boolean isBetter(int a, int b) {
+        if ((kinds[a] == CANDIDATE) != (kinds[b] == CANDIDATE))
+            return kinds[a] == CANDIDATE;
+        return lengths[a] > lengths[b];
+    }
+
+    private long band(int band, int i) {
+        int bands = nearBits + 1;
+        int shift = band * 64 / bands;
+        int bits = (band + 1) * 64 / bands - shift;
+        return (dHashes[i] >>> shift) & ((1L << bits) - 1);
+    }
+
+    // The center keeps an image which isn't kept by another one yet
+    private void join(int center, int image, int[] centers) {
+        if (centers[image] < 0 && isNear(center, image))
+            centers[image] = center;
+    }
+
+    private boolean isNear(int a, int b) {
+        if (Long.bitCount(dHashes[a] ^ dHashes[b]) > nearBits)
+            return false;
+
+        int red = ((colors[a] >> 16) & 0xFF) - ((colors[b] >> 16) & 0xFF);
+        int green = ((colors[a] >> 8) & 0xFF) - ((colors[b] >> 8) & 0xFF);
+        int blue = (colors[a] & 0xFF) - (colors[b] & 0xFF);
+
+        return red * red + green * green + blue * blue <= colorDistance * colorDistance;
+    }
+
+    private int find(int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a != b)
+            parents[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    /**
+     * @param position of an image, in the order they were added
+     * @return position of the image it's a copy of, NOT_DUPLICATE,
+     * or DROPPED.
+     */
+    int keptOf(int position) {
+        return kept[position];
+    }
+
+    /**
+     * Remembers where an image is in the TileStore of the index,
+     * for the report.
+     *
+     * @param position   ..
+     * @param storeIndex ..
+     */
+    void stored(int position, int storeIndex) {
+        storeIndexes[position] = storeIndex;
+    }
+
+    /**
+     * @param image a dropped copy, for the report
+     */
+    void dropped(Image image) {
+        dropped.add(image.path);
+    }
+
+    /**
+     * @return number of copies which are not kept
+     */
+    int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return number of them which are exact copies
+     */
+    int getExact() {
+        return exact;
+    }
+
+    /**
+     * Writes which copies were collapsed into which image, a line
+     * for every copy:
+     * <pre>
+     * copy path, kept path, "exact" or "near" and the bits their
+     * perceptual hashes differ in, separated by tabs
+     * </pre>
+     * Copies which are dropped are told at the end.
+     *
+     * @param file  ..
+     * @param tiles of the index, every image stored()
+     * @throws IOException ..
+     */
+    void writeReport(File file, TileStore tiles) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(
+                file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("# copy\tkept\tkind");
+
+            for (int i = 0; i < size; i++) {
+                int keep = kept[i];
+                if (keep < 0)
+                    continue;
+
+                String kind = contentHashes[i] == contentHashes[keep] ? "exact"
+                        : "near " + Long.bitCount(dHashes[i] ^ dHashes[keep]);
+                out.println(tiles.path(storeIndexes[i]) + "\t" +
+                        tiles.path(storeIndexes[keep]) + "\t" + kind);
+            }
+
+            for (String path : dropped)
+                out.println("# dropped, its kept image is gone: " + path);
+        }
+    }
+
+    /**
+     * Writes the hashes of every image of an index, in the order of
+     * its records, good images first, so they don't have to be
+     * calculated again when the index is refreshed.
+     *
+     * @param file  ..
+     * @param tiles of the index
+     * @param index is index.bin, its last modified time and length
+     *              are kept to know it's the same one.
+     * @throws IOException ..
+     */
+    static void writeHashes(File file, TileStore tiles, File index) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(tiles.size());
+            out.writeLong(index.lastModified());
+            out.writeLong(index.length());
+
+            // Same order as FileGenerator
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < tiles.size(); i++) {
+                    if ((tiles.norm(i) > 0) == (pass == 0)) {
+                        out.writeLong(tiles.contentHash(i));
+                        out.writeLong(tiles.dHash(i));
+                    }
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file    ..
+     * @param records number of records of the index
+     * @param index   is index.bin
+     * @return content and perceptual hash of every record, one after
+     * another, or null if the file doesn't belong to the index.
+     * @throws IOException ..
+     */
+    static long[] readHashes(File file, int records, File index) throws IOException {
+        if (!file.isFile() || file.length() != 24 + 16L * records)
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != records ||
+                    in.readLong() != index.lastModified() || in.readLong() != index.length())
+                return null;
+
+            long[] hashes = new long[2 * records];
+            for (int i = 0; i < hashes.length; i++)
+                hashes[i] = in.readLong();
+            return hashes;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Writes an image as a Deep Zoom pyramid, which viewers like
+ * OpenSeadragon load a few tiles at a time:
+ * <pre>
+ * name.dzi                     size, tile size and format
+ * name_files/level/col_row.jpg tiles of every level
+ * </pre>
+ * Level 0 is a single pixel, and every level is twice as big as the
+ * one below it, up to the full image. The image is never in memory:
+ * only the tiles of the top level are drawn, by a Source, and a tile
+ * of a lower level is made from the four tiles above it, so every
+ * tile is drawn once. Tiles are made as a tree, a task for every tile
+ * of the level where the whole image fits into one, and idle threads
+ * steal the branches of the others.
+ */
+class DeepZoomWriter {
+    private static final int TILE_SIZE = 256;
+    private static final String FORMAT = "jpg";
+
+    /**
+     * Draws regions of the full image.
+     */
+    interface Source {
+        /**
+         * Is called from several threads at the same time.
+         *
+         * @param x      left of the region
+         * @param y      top of the region
+         * @param width  ..
+         * @param height ..
+         * @param pixels rgb values of the region, row by row, to be
+         *               filled, they are black until then.
+         * @throws IOException ..
+         */
+        void draw(int x, int y, int width, int height, int[] pixels) throws IOException;
+    }
+
+    private final File dzi;
+    private final File tilesDirectory;
+    private final int width;
+    private final int height;
+    private final int maxLevel;
+    private final AtomicInteger tiles = new AtomicInteger();
+
+    /**
+     * @param dzi    the descriptor file, its tiles are in a directory
+     *               next to it, whose name ends with "_files".
+     * @param width  of the full image
+     * @param height of the full image
+     */
+    DeepZoomWriter(File dzi, int width, int height) {
+        String name = dzi.getName();
+        if (name.endsWith(".dzi"))
+            name = name.substring(0, name.length() - 4);
+
+        this.dzi = dzi;
+        this.tilesDirectory = new File(dzi.getAbsoluteFile().getParentFile(), name + "_files");
+        this.width = width;
+        this.height = height;
+
+        // The top level is the first whose size is the image's
+        int max = Math.max(1, Math.max(width, height));
+        this.maxLevel = 32 - Integer.numberOfLeadingZeros(max - 1);
+    }
+
+    /**
+     * Writes all tiles, then the descriptor. Tiles of an older
+     * pyramid with the same name are deleted first.
+     *
+     * @param source      draws the top level
+     * @param parallelism is the number of threads to use.
+     * @return number of tiles written
+     * @throws IOException ..
+     */
+    int write(Source source, int parallelism) throws IOException {
+        deleteTiles();
+        for (int level = 0; level <= maxLevel; level++)
+            Files.createDirectories(new File(tilesDirectory, String.valueOf(level)).toPath());
+
+        // The highest level which is a single tile
+        int rootLevel = maxLevel;
+        while (levelWidth(rootLevel) > TILE_SIZE || levelHeight(rootLevel) > TILE_SIZE)
+            rootLevel--;
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int[] pixels;
+        try {
+            pixels = pool.invoke(new TileTask(source, rootLevel, 0, 0));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        // Below it, every level is a single tile as well
+        for (int level = rootLevel - 1; level >= 0; level--) {
+            pixels = downsample(pixels, levelWidth(level + 1), levelHeight(level + 1),
+                    levelWidth(level), levelHeight(level));
+            writeTile(level, 0, 0, pixels, levelWidth(level), levelHeight(level));
+        }
+
+        writeDescriptor();
+        return tiles.get();
+    }
+
+    /**
+     * @return number of levels of the pyramid
+     */
+    int getLevels() {
+        return maxLevel + 1;
+    }
+
+    private int levelWidth(int level) {
+        return ((width - 1) >> (maxLevel - level)) + 1;
+    }
+
+    private int levelHeight(int level) {
+        return ((height - 1) >> (maxLevel - level)) + 1;
+    }
+
+    // Makes a tile and returns its pixels, for the tile below it
+    private class TileTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Source source;
+        private final int level;
+        private final int column;
+        private final int row;
+
+        TileTask(Source source, int level, int column, int row) {
+            this.source = source;
+            this.level = level;
+            this.column = column;
+            this.row = row;
+        }
+
+        @Override
+        protected int[] compute() {
+            int x = column * TILE_SIZE;
+            int y = row * TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, levelWidth(level) - x);
+            int tileHeight = Math.min(TILE_SIZE, levelHeight(level) - y);
+            int[] pixels;
+
+            try {
+                if (level == maxLevel) {
+                    pixels = new int[tileWidth * tileHeight];
+                    source.draw(x, y, tileWidth, tileHeight, pixels);
+                } else {
+                    pixels = fromAbove(tileWidth, tileHeight);
+                }
+
+                writeTile(level, column, row, pixels, tileWidth, tileHeight);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return pixels;
+        }
+
+        // Puts the tiles above together, then halves them
+        private int[] fromAbove(int tileWidth, int tileHeight) {
+            int aboveWidth = Math.min(2 * TILE_SIZE, levelWidth(level + 1) - 2 * column * TILE_SIZE);
+            int aboveHeight = Math.min(2 * TILE_SIZE, levelHeight(level + 1) - 2 * row * TILE_SIZE);
+
+            TileTask[] tasks = new TileTask[4];
+            for (int k = 0; k < 4; k++) {
+                int u = k & 1;
+                int v = k >> 1;
+                if (u * TILE_SIZE < aboveWidth && v * TILE_SIZE < aboveHeight)
+                    tasks[k] = new TileTask(source, level + 1, 2 * column + u, 2 * row + v);
+            }
+
+            for (int k = 1; k < 4; k++) {
+                if (tasks[k] != null)
+                    tasks[k].fork();
+            }
+
+            int[] above = new int[aboveWidth * aboveHeight];
+
+            for (int k = 0; k < 4; k++) {
+                if (tasks[k] == null)
+                    continue;
+
+                int[] tile = k == 0 ? tasks[k].invoke() : tasks[k].join();
+                int left = (k & 1) * TILE_SIZE;
+                int top = (k >> 1) * TILE_SIZE;
+                int width = Math.min(TILE_SIZE, aboveWidth - left);
+                int height = Math.min(TILE_SIZE, aboveHeight - top);
+
+                for (int j = 0; j < height; j++)
+                    System.arraycopy(tile, j * width, above,
+                            (top + j) * aboveWidth + left, width);
+            }
+
+            return downsample(above, aboveWidth, aboveHeight, tileWidth, tileHeight);
+        }
+    }
+
+    /**
+     * Halves an image, every pixel is the average of the 2x2 pixels
+     * above it, or of fewer at an odd edge.
+     */
+    private static int[] downsample(int[] pixels, int width, int height,
+                                    int newWidth, int newHeight) {
+        int[] result = new int[newWidth * newHeight];
+
+        for (int y = 0, k = 0; y < newHeight; y++) {
+            for (int x = 0; x < newWidth; x++, k++) {
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                int count = 0;
+
+                for (int v = 2 * y; v < Math.min(2 * y + 2, height); v++) {
+                    for (int u = 2 * x; u < Math.min(2 * x + 2, width); u++) {
+                        int rgb = pixels[v * width + u];
+                        red += (rgb >> 16) & 0xFF;
+                        green += (rgb >> 8) & 0xFF;
+                        blue += rgb & 0xFF;
+                        count++;
+                    }
+                }
+
+                int half = count / 2;
+                result[k] = ((red + half) / count) << 16 |
+                        ((green + half) / count) << 8 |
+                        (blue + half) / count;
+            }
+        }
+        return result;
+    }
+
+    private void writeTile(int level, int column, int row, int[] pixels,
+                           int tileWidth, int tileHeight) throws IOException {
+        BufferedImage image = new BufferedImage(tileWidth, tileHeight,
+                BufferedImage.TYPE_INT_RGB);
+        PixelKernel.blit(pixels, tileWidth, tileHeight, image, 0, 0);
+
+        File file = new File(tilesDirectory, level + "/" + column + "_" + row + "." + FORMAT);
+        if (!ImageIO.write(image, FORMAT, file))
+            throw new IOException("No writer for " + FORMAT);
+
+        tiles.incrementAndGet();
+    }
+
+    private void writeDescriptor() throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(
+                dzi.toPath(), StandardCharsets.UTF_8))) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\"");
+            out.println("       TileSize=\"" + TILE_SIZE + "\" Overlap=\"0\" Format=\"" + FORMAT + "\">");
+            out.println("    <Size Width=\"" + width + "\" Height=\"" + height + "\"/>");
+            out.println("</Image>");
+        }
+    }
+
+    private void deleteTiles() throws IOException {
+        if (!tilesDirectory.isDirectory())
+            return;
+
+        try (Stream<Path> paths = Files.walk(tilesDirectory.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
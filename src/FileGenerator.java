@@ -1,54 +1,169 @@
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * This class is used for generating a file that is named
- * metadata.txt which contains all images information.
+ * index.bin which contains all images information.
+ * The file begins with a header, then a record of fixed size
+ * for each image, then all the paths in a string table:
+ * <pre>
+ * header:  magic, version, count, failed count,
+ *          string table offset (long), string table size (long),
+ *          generation (long)
+ * records: red, green, blue, flags (bytes), norm, path offset,
+ *          path length (ints), file length, last modified (longs)
+ * strings: UTF-8 bytes of all paths
+ * </pre>
+ * So it can be memory-mapped and read without any parsing.
+ * The records of images which can't be opened follow the good
+ * ones, so we remember them and don't try them again, and so do
+ * the copies of other images, see Deduplicator.
+ * The generation is a random number of the indexing which wrote the
+ * file, the atlases written with it have the same, see ThumbnailAtlas.
+ * Version 1 records had no flags, file length and last modified,
+ * and up to version 2 the header had no generation.
  */
 class FileGenerator {
+    static final String INDEX_NAME = "index.bin";
+    static final int MAGIC = 0x4D494458; // "MIDX"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 40;
+    static final int HEADER_SIZE_V2 = 32;
+    static final int RECORD_SIZE = 32;
+    static final int RECORD_SIZE_V1 = 16;
+    static final int FLAG_FAILED = 1;
+    static final int FLAG_DUPLICATE = 2;
+
     private String directoryPath;
-    private ArrayList<Image> images;
+    private TileStore tiles;
+    private long generation;
+
+    /**
+     * An index without a generation, whose atlases were
+     * written before atlases had one.
+     *
+     * @param directoryPath ..
+     * @param tiles         ..
+     */
+    FileGenerator(String directoryPath,
+                  TileStore tiles) {
+        this(directoryPath, tiles, 0);
+    }
 
     /**
      * @param directoryPath ..
-     * @param images        ..
+     * @param tiles         ..
+     * @param generation    of the atlases which were written
+     *                      with the index
      */
     FileGenerator(String directoryPath,
-                  ArrayList<Image> images) {
+                  TileStore tiles, long generation) {
         this.directoryPath = directoryPath;
-        this.images = images;
+        this.tiles = tiles;
+        this.generation = generation;
     }
 
-    // Notice that only those Image objects which have
-    // positive norm will be written into metadata.txt
+    /**
+     * @param index index.bin
+     * @return its generation, 0 if it has none or can't be read.
+     */
+    static long readGeneration(File index) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return 0;
+
+            in.skipBytes(24);  // The counts and the string table
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Notice that only those images which have positive
+    // norm will be found, the others are written as failed ones.
     void generateFile() throws IOException {
-        String fileName = "metadata.txt";
+        File file = new File(directoryPath + INDEX_NAME);
+        File tmp = new File(directoryPath + INDEX_NAME + ".tmp");
+
+        // Good images in their order, then the failed ones
+        int[] records = new int[tiles.size()];
+        int count = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            if (tiles.norm(i) > 0)
+                records[count++] = i;
+        }
+
+        for (int i = 0, k = count; i < tiles.size(); i++) {
+            if (tiles.norm(i) <= 0)
+                records[k++] = i;
+        }
+
+        byte[][] paths = new byte[records.length][];
+        long stringsSize = 0;
+        for (int k = 0; k < paths.length; k++) {
+            paths[k] = tiles.path(records[k]).getBytes(StandardCharsets.UTF_8);
+            stringsSize += paths[k].length;
+        }
+
+        if (stringsSize > Integer.MAX_VALUE)
+            throw new IOException("Paths are too long for an index: " + stringsSize);
+
+        FileOutputStream fileOutputStream = new FileOutputStream(tmp);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fileOutputStream, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(records.length - count);
+            out.writeLong(HEADER_SIZE + (long) RECORD_SIZE * records.length);
+            out.writeLong(stringsSize);
+            out.writeLong(generation);
+
+            int offset = 0;
+            for (int k = 0; k < paths.length; k++) {
+                writeImageData(out, records[k], offset, paths[k].length);
+                offset += paths[k].length;
+            }
 
-        FileWriter fileWriter = new FileWriter(
-                new File(directoryPath + fileName));
+            for (byte[] path : paths)
+                out.write(path);
 
-        for (Image image : images) {
-            if (image.norm > 0)
-                writeImageData(fileWriter, image);
+            out.flush();
+            fileOutputStream.getFD().sync();  // To be on the disk before moving it
         }
 
-        fileWriter.flush();  // To write into the file immediately
-        fileWriter.close();
+        // Readers see either the old index or the new one
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 
 
     /**
-     * Writes information of each image into metadata.txt
+     * Writes the record of each image into index.bin
      *
-     * @param fileWriter ..
-     * @param image      Image object
+     * @param out        ..
+     * @param index      of the image in the store
+     * @param pathOffset offset of the path in the string table
+     * @param pathLength length of the path in bytes
      * @throws IOException ..
      */
-    private void writeImageData(FileWriter fileWriter, Image image)
+    private void writeImageData(DataOutputStream out, int index,
+                                int pathOffset, int pathLength)
             throws IOException {
-        String text = image.red + ", " + image.green + ", " + image.blue + ", "
-                + image.norm + ", " + image.path + " \n";
-        fileWriter.write(text);
+        out.writeByte(tiles.red(index));
+        out.writeByte(tiles.green(index));
+        out.writeByte(tiles.blue(index));
+        out.writeByte(tiles.norm(index) > 0 ? 0
+                : tiles.norm(index) == Deduplicator.DUPLICATE_NORM ? FLAG_FAILED | FLAG_DUPLICATE
+                : FLAG_FAILED);
+        out.writeInt(tiles.norm(index));
+        out.writeInt(pathOffset);
+        out.writeInt(pathLength);
+        out.writeLong(tiles.length(index));
+        out.writeLong(tiles.lastModified(index));
     }
 
 }
@@ -0,0 +1,185 @@
+/**
+ * A single average color says nothing about the structure of an
+ * image, so a tile with a dark top and a bright bottom looks just
+ * like a gray one. Here every image is described by a small grid of
+ * average colors, 2x2 or 4x4, and compared with the same grid of a
+ * mosaic square.
+ * The grids are read from the atlas of the grid size, which is
+ * written while indexing like any other tile size, into one int
+ * array, the r, g and b of every cell of an image one after another,
+ * and images in the same order as the list.
+ * A search is exact, but it doesn't compare every grid: for every
+ * channel, sum((a - b)^2) >= (sum(a) - sum(b))^2 / cells, so a
+ * ColorTree over the channel sums of the grids skips the ones which
+ * are too far, and the rest stop as soon as they are farther than
+ * the best one.
+ */
+class GridDescriptors implements GridIndex {
+    private final int gridSize;
+    private final int cells;
+    private final int dimensions;
+    private final int count;
+
+    // r, g, b of every cell of every image
+    private final int[] values;
+
+    // Over the sums of r, g and b of every grid
+    private final ColorTree sumTree;
+
+    /**
+     * Reads all grids of an atlas.
+     *
+     * @param atlas whose width and height are the grid size,
+     *              from 1 to 8.
+     */
+    GridDescriptors(ThumbnailAtlas atlas) {
+        // Bigger grids would overflow the distances
+        if (atlas.getWidth() != atlas.getHeight() || atlas.getWidth() > 8)
+            throw new IllegalArgumentException("A grid must be square, up to 8x8");
+
+        this.gridSize = atlas.getWidth();
+        this.cells = gridSize * gridSize;
+        this.dimensions = 3 * cells;
+        this.count = atlas.size();
+        this.values = new int[count * dimensions];
+
+        int[] red = new int[count];
+        int[] green = new int[count];
+        int[] blue = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            byte[] record = atlas.readRecord(i);
+            int offset = i * dimensions;
+
+            for (int d = 0; d < dimensions; d += 3) {
+                values[offset + d] = record[d] & 0xFF;
+                values[offset + d + 1] = record[d + 1] & 0xFF;
+                values[offset + d + 2] = record[d + 2] & 0xFF;
+
+                red[i] += record[d] & 0xFF;
+                green[i] += record[d + 1] & 0xFF;
+                blue[i] += record[d + 2] & 0xFF;
+            }
+        }
+
+        sumTree = new ColorTree(red, green, blue);
+    }
+
+    @Override
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return number of values of a grid, 3 for every cell.
+     */
+    int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return r, g and b of every cell of every image, which
+     * must not be modified.
+     */
+    int[] values() {
+        return values;
+    }
+
+    /**
+     * Searches the image whose grid is the most similar to the given
+     * one, by the squared Euclidean distance over all cells.
+     *
+     * @param grid r, g and b of every cell, row by row
+     * @return list index, or -1 if there are no images.
+     */
+    @Override
+    public int nearest(int[] grid) {
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+
+        for (int d = 0; d < dimensions; d += 3) {
+            red += grid[d];
+            green += grid[d + 1];
+            blue += grid[d + 2];
+        }
+
+        // Distances are multiplied by cells, so the distance of the
+        // sums in the tree is never bigger than them.
+        return sumTree.nearest(red, green, blue,
+                (index, limit) -> cells * distance(grid, index,
+                        limit / cells + (limit % cells == 0 ? 0 : 1)));
+    }
+
+    /**
+     * @return a Mask for nearest(int[], ColorTree.Mask, int[])
+     */
+    ColorTree.Mask newMask() {
+        return sumTree.newMask();
+    }
+
+    /**
+     * Same as nearest(int[]), but finds the k most similar grids
+     * which are not removed, k is the length of result.
+     *
+     * @param grid   ..
+     * @param mask   from newMask(), or null
+     * @param result is filled with list indices, nearer ones first
+     * @return number of images found
+     */
+    int nearest(int[] grid, ColorTree.Mask mask, int[] result) {
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+
+        for (int d = 0; d < dimensions; d += 3) {
+            red += grid[d];
+            green += grid[d + 1];
+            blue += grid[d + 2];
+        }
+
+        return sumTree.nearest(red, green, blue,
+                (index, limit) -> cells * distance(grid, index,
+                        limit / cells + (limit % cells == 0 ? 0 : 1)),
+                mask, result);
+    }
+
+    private int distance(int[] grid, int index, int limit) {
+        return distance(values, index * dimensions, grid, 3 * gridSize, limit);
+    }
+
+    /**
+     * Distance of a grid to another one in an array, it gives up
+     * after a row of cells once it reaches the limit.
+     *
+     * @param values    grids one after another
+     * @param offset    where the grid starts in values
+     * @param grid      ..
+     * @param rowLength number of values of a row of cells
+     * @param limit     ..
+     * @return the distance, or something not smaller than the limit.
+     */
+    static int distance(int[] values, int offset, int[] grid,
+                        int rowLength, int limit) {
+        int distance = 0;
+
+        for (int start = 0; start < grid.length; start += rowLength) {
+            for (int d = start, end = start + rowLength; d < end; d += 3) {
+                int r = values[offset + d] - grid[d];
+                int g = values[offset + d + 1] - grid[d + 1];
+                int b = values[offset + d + 2] - grid[d + 2];
+
+                distance += r * r + g * g + b * b;
+            }
+
+            if (distance >= limit)
+                return distance;
+        }
+
+        return distance;
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * Searches the image whose grid of colors is the most similar to
+ * the grid of a mosaic square, either exactly, like GridDescriptors,
+ * or approximately, like IvfIndex, which is faster for huge libraries.
+ * Implementations must allow searches from several threads.
+ */
+interface GridIndex {
+    /**
+     * @return width and height of the grids, in cells.
+     */
+    int getGridSize();
+
+    /**
+     * @param grid r, g and b of every cell, row by row
+     * @return list index, or -1 if there are no images.
+     */
+    int nearest(int[] grid);
+}
@@ -7,6 +7,18 @@ class Image implements Comparable<Image> {
     int norm;
     String path;
 
+    // Size and last modified time of the file, to know if
+    // it has changed since we indexed it, 0 if we don't know.
+    long length, lastModified;
+
+    // Hash of the file's bytes and perceptual hash of its pixels,
+    // to find copies of the same photo, 0 if we don't know.
+    long contentHash, dHash;
+
+    // Reduced pixels for each tile size, only kept while indexing
+    // until they are written into the atlas files.
+    byte[][] thumbnails;
+
     /**
      * Constructs a Image object only with a file path.
      *
@@ -31,7 +43,7 @@ class Image implements Comparable<Image> {
     }
 
     /**
-     * When we have a file named metadata.txt, we need to
+     * When we have a file named index.bin, we need to
      * initiate objects with the following attributes.
      *
      * @param red   ..
@@ -80,7 +92,13 @@ class Image implements Comparable<Image> {
     @Override
     public int compareTo(Image obj) {
 
-        // A Image object is "bigger" than another if it's norm is bigger.
-        return Integer.compare(this.norm, obj.norm);
+        // A Image object is "bigger" than another if it's norm is bigger,
+        // paths decide between equal norms, since images are found in
+        // a different order every time a directory is walked.
+        int result = Integer.compare(this.norm, obj.norm);
+
+        if (result != 0 || this.path == null || obj.path == null)
+            return result;
+        return this.path.compareTo(obj.path);
     }
 }
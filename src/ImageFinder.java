@@ -2,22 +2,60 @@ import java.util.ArrayList;
 
 /**
  * Our mission is to find out which image in the list
- * is most similar to a mosaic square of our goal image,
- * so here a binary version searching is implemented.
+ * is most similar to a mosaic square of our goal image.
+ * By default a k-d tree over the colors gives us the exact
+ * answer, the old binary version searching on the norm is
+ * still here when a radius is given. The radius search can only
+ * find one image, so a search for several ones, like the ones of
+ * usage limits, builds the tree anyway.
  */
 class ImageFinder {
-    private ArrayList<Image> images;
+    private TileStore tiles;
     private int radius;
+    private ColorTree colorTree;
+    private ColorTree maskTree;  // of the radius search, see tree()
+    private ColorLookupTable lookupTable;
+    private GridIndex gridIndex;
 
     /**
+     * Searches the exact most similar image with a ColorTree.
+     *
+     * @param tiles the images, sorted by their norm
+     */
+    ImageFinder(TileStore tiles) {
+        this.tiles = tiles;
+        this.colorTree = new ColorTree(tiles);
+    }
+
+    /**
+     * @param tiles  the images, sorted by their norm
      * @param radius is the radius that we defined to search our
      *               goal image object.
      */
-    ImageFinder(ArrayList<Image> images, int radius) {
-        this.images = images;
+    ImageFinder(TileStore tiles, int radius) {
+        this.tiles = tiles;
         this.radius = radius;
     }
 
+    /**
+     * Same as ImageFinder(TileStore), for a list of Image objects.
+     *
+     * @param images list of Image objects
+     */
+    ImageFinder(ArrayList<Image> images) {
+        this(TileStore.of(images));
+    }
+
+    /**
+     * Same as ImageFinder(TileStore, int), for a list of Image objects.
+     *
+     * @param images list of Image objects
+     * @param radius ..
+     */
+    ImageFinder(ArrayList<Image> images, int radius) {
+        this(TileStore.of(images), radius);
+    }
+
     /**
      * Compares two Image object to our goal, return the index
      * of the more closely one.
@@ -28,23 +66,22 @@ class ImageFinder {
      * @return list index.
      */
     private int compareNorm(int first, int second, Image goal) {
-        return (Math.abs(images.get(first).norm - goal.norm)
-                > Math.abs(images.get(second).norm - goal.norm))
+        return (Math.abs(tiles.norm(first) - goal.norm)
+                > Math.abs(tiles.norm(second) - goal.norm))
                 ? second
                 : first;
     }
 
     /**
-     * Same as the first compareNorm(), but return the Image
-     * object rather than index.
+     * Same as compareNorm(), but compares the Euclidean distance
+     * rather than the norm.
      *
-     * @param first  Image object
-     * @param second Image object
+     * @param first  list index
+     * @param second list index
      * @param goal   Image object
-     * @return Image object.
+     * @return list index.
      */
-    private Image compareNorm(Image first,
-                              Image second, Image goal) {
+    private int compareDistance(int first, int second, Image goal) {
         return (normDistance(first, goal)
                 < normDistance(second, goal))
                 ? first
@@ -56,14 +93,16 @@ class ImageFinder {
      * it's "phony" because we don't apply sqrt to it just for better
      * performance and simplicity.
      *
-     * @param first  Image object
-     * @param second Image object
+     * @param index list index
+     * @param goal  Image object
      * @return norm
      */
-    private int normDistance(Image first, Image second) {
-        return (first.red - second.red) * (first.red - second.red) +
-                (first.green - second.green) * (first.green - second.green) +
-                (first.blue - second.blue) * (first.blue - second.blue);
+    private int normDistance(int index, Image goal) {
+        int red = tiles.red(index) - goal.red;
+        int green = tiles.green(index) - goal.green;
+        int blue = tiles.blue(index) - goal.blue;
+
+        return red * red + green * green + blue * blue;
     }
 
     /**
@@ -77,7 +116,7 @@ class ImageFinder {
      * @return list index
      */
     private int binarySearch(Image goal) {
-        int len = images.size();
+        int len = tiles.size();
         int left = 0;
         int right = len - 1;
 
@@ -86,21 +125,13 @@ class ImageFinder {
 
         int tmp;
         while (left != right) {
-            if (images.get(left) == goal)
-                return left;
-
-            if (images.get(right) == goal)
-                return right;
-
-            if (images.get(left).compareTo(goal) < 0) {
+            if (tiles.norm(left) < goal.norm) {
                 tmp = (right - left) / 2 + left;  // Reduces searching range
 
                 if (left == tmp)
                     return compareNorm(left, right, goal);
 
-                if (images.get(tmp) == goal)
-                    return tmp;
-                else if (images.get(tmp).compareTo(goal) < 0)
+                if (tiles.norm(tmp) < goal.norm)
                     left = tmp;
                 else
                     right = tmp;
@@ -113,14 +144,181 @@ class ImageFinder {
     }
 
     /**
-     * Uses method binarySearch() to find the searching "center",
-     * then find out the best result under the defined radius.
+     * Lets searches read the answer from a ColorLookupTable rather
+     * than searching it.
+     *
+     * @param lookupTable ..
+     */
+    void useLookupTable(ColorLookupTable lookupTable) {
+        this.lookupTable = lookupTable;
+    }
+
+    /**
+     * Lets searches compare grids of colors rather than only the
+     * average color, see searchIndex(int[]).
+     *
+     * @param gridIndex over the grids of the list, in the same order
+     */
+    void useGridIndex(GridIndex gridIndex) {
+        this.gridIndex = gridIndex;
+    }
+
+    /**
+     * @return the grid size of searchIndex(int[]), or 0
+     * if we only search average colors.
+     */
+    int getGridSize() {
+        return gridIndex == null ? 0 : gridIndex.getGridSize();
+    }
+
+    int size() {
+        return tiles.size();
+    }
+
+    /**
+     * @param index list index
+     * @return path of the image file
+     */
+    String getPath(int index) {
+        return tiles.path(index);
+    }
+
+    /**
+     * @param index list index
+     * @return average color of the image, as rgb
+     */
+    int getColor(int index) {
+        return (tiles.red(index) << 16) | (tiles.green(index) << 8) | tiles.blue(index);
+    }
+
+    /**
+     * Same as searchIndex(), but returns the Image object.
      *
      * @param goal Image object
      * @return Image object
      */
     Image searchImage(Image goal) {
-        return searchImage(goal, binarySearch(goal));
+        int index = searchIndex(goal.red, goal.green, goal.blue);
+        return index < 0 ? null : tiles.get(index);
+    }
+
+    /**
+     * Reads the answer from the lookup table if we have one, then
+     * asks the ColorTree for the nearest color, or if we don't have
+     * one, uses method binarySearch() to find the searching "center",
+     * then find out the best result under the defined radius.
+     *
+     * @param red   ..
+     * @param green ..
+     * @param blue  ..
+     * @return list index, or -1 if the list is empty.
+     */
+    int searchIndex(int red, int green, int blue) {
+        if (lookupTable != null)
+            return lookupTable.lookup(red, green, blue);
+
+        if (colorTree != null)
+            return colorTree.nearest(red, green, blue);
+
+        Image goal = new Image(red, green, blue);
+        int start = binarySearch(goal);
+
+        return start < 0 ? -1 : searchIndex(goal, start);
+    }
+
+    /**
+     * Searches the image whose grid of colors is the most similar
+     * to the given one, or whose average color is the most similar
+     * to the grid's one if we don't have grids.
+     *
+     * @param grid r, g and b of every cell of the grid, row by row
+     * @return list index, or -1 if the list is empty.
+     */
+    int searchIndex(int[] grid) {
+        if (gridIndex != null)
+            return gridIndex.nearest(grid);
+
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+
+        for (int d = 0; d < grid.length; d += 3) {
+            red += grid[d];
+            green += grid[d + 1];
+            blue += grid[d + 2];
+        }
+
+        int cells = grid.length / 3;
+        return searchIndex((int) (red / cells), (int) (green / cells),
+                (int) (blue / cells));
+    }
+
+    /**
+     * The grids searchIndices() compares, only the exact search of
+     * grids can find several ones, so an IvfIndex gives its exact
+     * one, null if average colors are compared.
+     */
+    private GridDescriptors exactGrids() {
+        if (gridIndex instanceof IvfIndex)
+            return ((IvfIndex) gridIndex).getGrids();
+        if (gridIndex instanceof GridDescriptors)
+            return (GridDescriptors) gridIndex;
+        return null;
+    }
+
+    /**
+     * @return a Mask for searchIndices()
+     */
+    ColorTree.Mask newMask() {
+        GridDescriptors grids = exactGrids();
+        if (grids != null)
+            return grids.newMask();
+
+        return tree().newMask();
+    }
+
+    /**
+     * Finds the k most similar images which are not removed by the
+     * mask, k is the length of result. The lookup table only knows the
+     * most similar one, so it's never used here.
+     *
+     * @param grid   r, g and b of every cell of the grid, row by row,
+     *               a grid of one cell is just a color.
+     * @param mask   from newMask(), or null
+     * @param result is filled with list indices, more similar ones first
+     * @return number of images found
+     */
+    int searchIndices(int[] grid, ColorTree.Mask mask, int[] result) {
+        GridDescriptors grids = exactGrids();
+        if (grids != null)
+            return grids.nearest(grid, mask, result);
+
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+
+        for (int d = 0; d < grid.length; d += 3) {
+            red += grid[d];
+            green += grid[d + 1];
+            blue += grid[d + 2];
+        }
+
+        int cells = grid.length / 3;
+        return tree().nearest((int) (red / cells), (int) (green / cells),
+                (int) (blue / cells), null, mask, result);
+    }
+
+    /**
+     * @return the ColorTree of newMask() and searchIndices(), the
+     * radius search only builds one when it's first asked for.
+     */
+    private synchronized ColorTree tree() {
+        if (colorTree != null)
+            return colorTree;
+
+        if (maskTree == null)
+            maskTree = new ColorTree(tiles);
+        return maskTree;
     }
 
     /**
@@ -136,14 +334,14 @@ class ImageFinder {
      * @param start is the center index for search.
      * @return list index
      */
-    private Image searchImage(Image goal, int start) {
+    private int searchIndex(Image goal, int start) {
         int currentIndex = start;
         int count = radius;
-        Image result = images.get(start);
+        int result = start;
 
         // Compares towards "left"
         while (currentIndex > -1 && count > 0) {
-            result = compareNorm(images.get(currentIndex), result, goal);
+            result = compareDistance(currentIndex, result, goal);
             currentIndex--;
             count--;
         }
@@ -152,8 +350,8 @@ class ImageFinder {
         currentIndex = start;
 
         // Then towards "right"
-        while (currentIndex < images.size() && count > 0) {
-            result = compareNorm(images.get(currentIndex), result, goal);
+        while (currentIndex < tiles.size() && count > 0) {
+            result = compareDistance(currentIndex, result, goal);
             currentIndex++;
             count--;
         }
@@ -2,21 +2,42 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
- * There are two different ways to initiate all Image objects:
+ * There are two different ways to initiate all images:
  * if we run this program at first time, just read all image
  * files which belong to an input directory, then creates
- * object for each of them; since then metadata.txt will be
- * generated, so this program can read metadata.txt for
- * creating objects directly.
+ * object for each of them to be processed; since then index.bin
+ * will be generated, so this program can map index.bin for
+ * filling a TileStore directly. The old metadata.txt can
+ * still be read to migrate it.
  */
 class ImageInitializer {
     private String directoryPath;
     private File metaData;
     private int imagesNumber;
-    ArrayList<Image> images; // list that contains all Image objects.
+    private final LibraryScanner scanner = new LibraryScanner();
+    ArrayList<Image> images; // Image objects to be processed and indexed.
+    TileStore tiles;         // images read from the index.
+    TileStore failed;        // images which couldn't be opened last time.
+
+    // What refresh() keeps: the old index, the file of every kept
+    // image in it, and the failed images.
+    private TileStore keptTiles;
+    private Image[] kept;
+    private ArrayList<Image> keptFailed;
+
+    // A kept image whose file is taken to be the same as in the index
+    private static final Image SAME = new Image("");
 
     /**
      * @param directoryPath is the path of our input image directory.
@@ -33,7 +54,7 @@ class ImageInitializer {
     /**
      * Reads from a file which contains all images' information
      *
-     * @param metaData     is metadata.txt
+     * @param metaData     is index.bin or metadata.txt
      * @param imagesNumber ia the same stuff as the first constructor
      */
     ImageInitializer(File metaData, int imagesNumber) {
@@ -42,59 +63,295 @@ class ImageInitializer {
     }
 
     // Initiate the images list, then read images from a directory.
-    void readImageDirectory() {
-        images = new ArrayList<>(imagesNumber);
-        File directory = new File(directoryPath);
+    void readImageDirectory() throws IOException {
+        ArrayList<Image> found = new ArrayList<>(imagesNumber);
 
-        readImages(directory);
+        scanImageDirectory(image -> {
+            synchronized (found) {
+                found.add(image);
+            }
+        });
+
+        // Directories are walked in parallel, so the order
+        // of a walk is not the same every time.
+        found.sort((first, second) -> first.path.compareTo(second.path));
+        images = found;
     }
 
     /**
-     * Reads input directory to add new Image objects.
+     * Walks the image directory with a LibraryScanner, every image is
+     * given to the consumer as soon as it's found.
      *
-     * @param directory will be a directory which contains images.
+     * @param consumer is called from several threads
+     * @throws IOException if the directory doesn't exist.
      */
-    private void readImages(File directory) {
-        File[] files = directory.listFiles();
+    void scanImageDirectory(Consumer<Image> consumer) throws IOException {
+        scanner.scan(Paths.get(directoryPath), consumer);
+    }
+
+    /**
+     * @return the scanner of the image directory, which tells
+     * how many files it found and ignored.
+     */
+    LibraryScanner getScanner() {
+        return scanner;
+    }
+
+    // Maps index.bin, tiles and failed read their images from it
+    void readIndex() throws IOException {
+        try (FileChannel channel = new RandomAccessFile(metaData, "r").getChannel()) {
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.limit() < FileGenerator.HEADER_SIZE_V2 ||
+                    buffer.getInt(0) != FileGenerator.MAGIC)
+                throw new IOException("Not an index file: " + metaData);
+
+            int version = buffer.getInt(4);
+            if (version < 1 || version > FileGenerator.VERSION)
+                throw new IOException("Unknown index version " +
+                        version + ": " + metaData);
+
+            int headerSize = version == FileGenerator.VERSION
+                    ? FileGenerator.HEADER_SIZE
+                    : FileGenerator.HEADER_SIZE_V2;
+            int recordSize = version == 1
+                    ? FileGenerator.RECORD_SIZE_V1
+                    : FileGenerator.RECORD_SIZE;
+            int count = buffer.getInt(8);
+            int failedCount = buffer.getInt(12);
+            long stringsOffset = buffer.getLong(16);
+            long stringsSize = buffer.getLong(24);
+
+            // Nothing is read until the images are asked for,
+            // so a cut file must be found here.
+            if (count < 0 || failedCount < 0 ||
+                    stringsOffset < headerSize + (long) recordSize * (count + failedCount) ||
+                    stringsSize < 0 || stringsOffset + stringsSize > buffer.limit())
+                throw new IOException("Broken index file: " + metaData);
+
+            // The stores read the mapped file, which stays
+            // mapped after its channel is closed.
+            tiles = new TileStore(buffer, headerSize, count,
+                    recordSize, (int) stringsOffset);
+            failed = new TileStore(buffer, headerSize + count * recordSize, failedCount,
+                    recordSize, (int) stringsOffset);
+        }
+    }
+
+    /**
+     * Walks the image directory again and compares it with the index
+     * we have read. Images whose file is the same as last time are
+     * kept, their tiles are still in the atlases. Deleted ones are
+     * dropped, and failed ones and copies are not tried again unless
+     * their file has changed, or for copies, an image is gone. Then
+     * keptImages() and keptFailed() give the ones we keep, to be
+     * merged with the new ones.
+     *
+     * @param directoryPath is the path of our input image directory.
+     * @return new or changed Image objects which need to be processed.
+     * @throws IOException if the directory doesn't exist.
+     */
+    ArrayList<Image> refresh(String directoryPath) throws IOException {
+        TileStore oldTiles = tiles;
+        TileStore oldFailed = failed == null ? new TileStore(0) : failed;
+
+        // Kept images are compared with new ones by their hashes
+        readHashes(oldTiles, oldFailed);
+
+        // Positive for images, negative for failed ones
+        HashMap<String, Integer> known = new HashMap<>(
+                2 * (oldTiles.size() + oldFailed.size()));
+        for (int i = 0; i < oldTiles.size(); i++)
+            known.put(oldTiles.path(i), i);
+        for (int i = 0; i < oldFailed.size(); i++)
+            known.put(oldFailed.path(i), -i - 1);
+
+        this.directoryPath = directoryPath;
+        readImageDirectory();
+
+        // The file of every kept image, as it is now
+        kept = new Image[oldTiles.size()];
+        keptFailed = new ArrayList<>();
+        ArrayList<Image> changed = new ArrayList<>();
+
+        for (Image image : images) {
+            Integer position = known.get(image.path);
+
+            if (position == null ||
+                    (position >= 0 && !isSame(oldTiles, position, image)) ||
+                    (position < 0 && !isSame(oldFailed, -position - 1, image))) {
+                changed.add(image);
+                continue;
+            }
+
+            if (position >= 0) {
+                kept[position] = image;
+            } else {
+                Image old = oldFailed.get(-position - 1);
+                old.length = image.length;
+                old.lastModified = image.lastModified;
+                keptFailed.add(old);
+            }
+        }
 
-        if (files != null) {
-            for (File file : files) {
+        // A copy may have lost the image it was a copy of, then
+        // copies are processed again to be found again.
+        boolean lost = false;
+        for (Image image : kept)
+            lost |= image == null;
 
-                if (file.isDirectory())
-                    readImages(file);
-                else if (isImage(file))
-                    images.add(new Image(file.getAbsolutePath()));
+        if (lost) {
+            for (Iterator<Image> iterator = keptFailed.iterator(); iterator.hasNext(); ) {
+                Image old = iterator.next();
+                if (old.norm != Deduplicator.DUPLICATE_NORM)
+                    continue;
+
+                Image image = new Image(old.path);
+                image.length = old.length;
+                image.lastModified = old.lastModified;
+                changed.add(image);
+                iterator.remove();
             }
         }
+        keptFailed.sort(null);
+
+        keptTiles = oldTiles;
+        images = null;
+        tiles = null;
+        failed = null;
+        return changed;
+    }
+
+    /**
+     * Keeps the images of the index which pass a filter, without
+     * walking the directory, like the ones of shards which are not
+     * merged. Then keptImages() and keptFailed() give them, like
+     * after refresh().
+     *
+     * @param filter tells by its path whether an image is kept.
+     * @throws IOException ..
+     */
+    void keep(Predicate<String> filter) throws IOException {
+        TileStore oldTiles = tiles;
+        TileStore oldFailed = failed == null ? new TileStore(0) : failed;
+
+        readHashes(oldTiles, oldFailed);
+
+        kept = new Image[oldTiles.size()];
+        for (int i = 0; i < oldTiles.size(); i++) {
+            if (filter.test(oldTiles.path(i)))
+                kept[i] = SAME;
+        }
+
+        keptFailed = new ArrayList<>();
+        for (int i = 0; i < oldFailed.size(); i++) {
+            if (filter.test(oldFailed.path(i)))
+                keptFailed.add(oldFailed.get(i));
+        }
+        keptFailed.sort(null);
+
+        keptTiles = oldTiles;
+        tiles = null;
+        failed = null;
+    }
+
+    // Reads the hashes which were written with the index, if it's still the same
+    private void readHashes(TileStore tiles, TileStore failed) throws IOException {
+        File index = metaData.getAbsoluteFile();
+        long[] hashes = Deduplicator.readHashes(
+                new File(index.getParentFile(), Deduplicator.HASHES_NAME),
+                tiles.size() + failed.size(), index);
+
+        if (hashes == null)
+            return;
+
+        for (int i = 0; i < tiles.size(); i++)
+            tiles.setHashes(i, hashes[2 * i], hashes[2 * i + 1]);
+
+        for (int i = 0, k = tiles.size(); i < failed.size(); i++, k++)
+            failed.setHashes(i, hashes[2 * k], hashes[2 * k + 1]);
+    }
+
+    /**
+     * The images kept by refresh() or keep(), in the order of the index, their
+     * tiles are read from the atlases one image at a time.
+     *
+     * @param atlases is the atlas of every tile size, if one of
+     *                them is null, tiles of that size are not kept.
+     * @return IndexMerger.Run object
+     */
+    IndexMerger.Run keptImages(ThumbnailAtlas[] atlases) {
+        TileStore oldTiles = keptTiles;
+        Image[] files = kept;
+
+        return new IndexMerger.Run() {
+            private int next;
+
+            @Override
+            public Image next() {
+                while (next < files.length && files[next] == null)
+                    next++;
+                if (next == files.length)
+                    return null;
+
+                Image image = oldTiles.get(next);
+                if (files[next] != SAME) {
+                    image.length = files[next].length;
+                    image.lastModified = files[next].lastModified;
+                }
+
+                image.thumbnails = new byte[atlases.length][];
+                for (int j = 0; j < atlases.length; j++) {
+                    if (atlases[j] != null)
+                        image.thumbnails[j] = atlases[j].readRecord(next);
+                }
+
+                next++;
+                return image;
+            }
+        };
+    }
+
+    /**
+     * @return the failed images kept by refresh() or keep(), sorted.
+     */
+    IndexMerger.Run keptFailed() {
+        return IndexMerger.of(keptFailed);
     }
 
     /**
-     * Here we implement a method to determinate if is a jpg picture,
-     * it will not work for many cases but it's ok for our case.
+     * An image whose length or last modified time we don't know,
+     * because its index was migrated from metadata.txt, is trusted
+     * to be the same.
      *
-     * @param file input file
+     * @param store of the index
+     * @param index of the image in the store
+     * @param image Image object from the directory
      * @return boolean
      */
-    private boolean isImage(File file) {
-        String path = file.getAbsolutePath();
-        String subString = path.substring(path.length() - 4);
+    private boolean isSame(TileStore store, int index, Image image) {
+        if (store.length(index) == 0 && store.lastModified(index) == 0)
+            return true;
 
-        return subString.equals(".jpg") || subString.equals(".JPG");
+        return store.length(index) == image.length &&
+                store.lastModified(index) == image.lastModified;
     }
 
-    // Creates Image objects
+    // Fills tiles from the old metadata.txt, failed ones included
     void readMetaData() throws IOException {
-        images = new ArrayList<>(imagesNumber);
+        tiles = new TileStore(imagesNumber);
         BufferedReader br = new BufferedReader(new FileReader(metaData));
 
         String str;
         while ((str = br.readLine()) != null)
-            images.add(parseImage(str));
+            parseImage(str);
 
+        br.close();
     }
 
-    // Parses a string to a Image object
-    private Image parseImage(String str) {
+    // Parses a string and adds it to tiles
+    private void parseImage(String str) {
         String[] imageAttributes = str.split(",");
 
         int red = Integer.parseInt(imageAttributes[0].trim());
@@ -103,6 +360,6 @@ class ImageInitializer {
         int norm = Integer.parseInt(imageAttributes[3].trim());
         String path = imageAttributes[4].trim();
 
-        return new Image(red, green, blue, norm, path);
+        tiles.add(red, green, blue, norm, path, 0, 0);
     }
 }
@@ -1,141 +1,153 @@
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.CountDownLatch;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * This class is for processing Image objects that contained
  * in list, because all these Image object don't have
  * red, green, blue and norm value, thus this class will help us
- * to calculate all the above.
+ * to calculate all the above. Every image is opened only once,
+ * its average pixel and its tiles are calculated from the same
+ * BufferedImage.
  */
-class ImageProcessor implements Runnable {
-    private CountDownLatch countDownLatch;
-    private ArrayList<Image> images;
-    private int start;
-    private int end;
+class ImageProcessor {
+    private int[][] tileSizes;
+
+    // Scratch buffers of the pixel loops, one for each thread
+    private final ThreadLocal<PixelKernel> pixelKernels =
+            ThreadLocal.withInitial(PixelKernel::new);
 
     /**
-     * @param countDownLatch is for multithreading, since we make several
-     *                       sub-threads in our main thread, and main thread
-     *                       can only be awaken until all sub-threads are finished,
-     *                       if not, we will get wrong result because some of
-     *                       sub-threads haven't finished yet, so CountDownLatch is
-     *                       needed to count down the amount of sub-threads, when
-     *                       it's value is 0, main thread will be awaken.
-     * @param start          is the start index of a partition, we will divide whole list
-     *                       into several parts, each part will be computed by a thread.
-     * @param end            is the end index respectively.
-     * @see CountDownLatch
+     * @param tileSizes is the width and height of every tile size
+     *                  we want to keep in the atlas.
      */
-    ImageProcessor(CountDownLatch countDownLatch,
-                   ArrayList<Image> images, int start, int end) {
-        this.countDownLatch = countDownLatch;
-        this.images = images;
-        this.start = start;
-        this.end = end;
+    ImageProcessor(int[][] tileSizes) {
+        this.tileSizes = tileSizes;
     }
 
+    /**
+     * Processes an Image object which only has a file path. The
+     * given object is not modified, so it's safe to call this
+     * method from several threads.
+     *
+     * @param image Image object with a path
+     * @return a new Image object with colors, norm and tiles.
+     * @throws IOException if the image can't be opened.
+     */
+    Image process(Image image) throws IOException {
+        return process(image, Files.readAllBytes(Paths.get(image.path)));
+    }
 
-    @Override
-    public void run() {
+    /**
+     * Same as process(Image), but the image is decoded from bytes
+     * which have been read already.
+     *
+     * @param image Image object with a path
+     * @param bytes content of its file
+     * @return a new Image object with colors, norm and tiles.
+     * @throws IOException if the image can't be decoded.
+     */
+    Image process(Image image, byte[] bytes) throws IOException {
+        // Some image i got can't be opened correctly, maybe they are
+        // damaged by decompression, or there is no reader for them.
+        BufferedImage imageBuffer = ImageIO.read(new ByteArrayInputStream(bytes));
 
-        calculateImagesNorm();
+        if (imageBuffer == null)
+            throw new IOException("No reader for " + image.path);
 
-        // When current thread is finished, need to countdown the latch
-        // to ensure that the main thread can be awaken when latch's value is 0.
-        countDownLatch.countDown();
+        Image result = process(image, imageBuffer);
+        result.contentHash = contentHash(bytes);
+        return result;
     }
 
+    private Image process(Image image, BufferedImage imageBuffer) {
+        PixelKernel pixelKernel = pixelKernels.get();
+        int rgb = pixelKernel.average(imageBuffer, 0, 0,
+                imageBuffer.getWidth(), imageBuffer.getHeight());
 
-    // Calculates norm of Image object contained by the image list.
-    private void calculateImagesNorm() {
-
-        for (int i = start; i < end; i++) {
-            File image = new File(images.get(i).path);
-            BufferedImage imageBuffer = openImage(image);
+        Image result = new Image(
+                (rgb >> 16) & 0xFF,
+                (rgb >> 8) & 0xFF,
+                rgb & 0xFF);
 
-            if (imageBuffer == null)
+        result.path = image.path;
+        result.length = image.length;
+        result.lastModified = image.lastModified;
+        result.thumbnails = reduceImage(pixelKernel, imageBuffer);
+        result.dHash = dHash(pixelKernel, imageBuffer);
 
-                // Here we play a trick to avoid some
-                // unavailable images are recorded.
-                images.get(i).norm = -100;
-            else
-                modifyImagePixel(i, calculatePixel(openImage(image)));
-        }
+        return result;
     }
 
     /**
-     * Modifies Image object when we have average pixel value.
-     *
-     * @param position is the index of image list to modify.
-     * @param rgb      average pixel value.
+     * @param bytes content of a file
+     * @return the first 64 bits of its SHA-256
      */
-    private void modifyImagePixel(int position, int rgb) {
-        Image image = images.get(position);
-
-        image.red = (rgb >> 16) & 0xFF;
-        image.green = (rgb >> 8) & 0xFF;
-        image.blue = rgb & 0xFF;
-
-        image.calculateNorm();
+    static long contentHash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = hash << 8 | (digest[i] & 0xFF);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-
     /**
-     * Opens a image file as a BufferedImage object.
+     * The difference hash of an image: it's reduced to 9x8 gray
+     * pixels, and every bit tells whether a pixel is darker than
+     * the one on its right. Resized or recompressed copies of a
+     * photo get the same bits, or almost.
      *
-     * @param image is the File object of the image is to open.
-     * @return BufferedImage object.
+     * @param pixelKernel of the current thread
+     * @param imageBuffer the opened image
+     * @return 64 bits, row by row
      */
-    private BufferedImage openImage(File image) {
-        BufferedImage imageBuffer = null;
-
-        try {
-            imageBuffer = ImageIO.read(image);
-        } catch (IOException e) {
-
-            // Some image i got can't be opened correctly,
-            // maybe they are damaged by decompression,
-            // so many IO exceptions will be thrown.
-            System.out.println("This photo should be deleted: " +
-                    image.getAbsolutePath());
-            System.err.println("I/O Error");
-            e.printStackTrace(System.err);
+    private static long dHash(PixelKernel pixelKernel, BufferedImage imageBuffer) {
+        int[] pixels = new int[9 * 8];
+        pixelKernel.reduce(imageBuffer, 9, 8, pixels);
+
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (gray(pixels[9 * y + x]) < gray(pixels[9 * y + x + 1]))
+                    hash |= 1;
+            }
         }
+        return hash;
+    }
 
-        return imageBuffer;
+    private static int gray(int rgb) {
+        return 299 * ((rgb >> 16) & 0xFF) + 587 * ((rgb >> 8) & 0xFF) + 114 * (rgb & 0xFF);
     }
 
     /**
-     * Calculates the average pixel value of the image.
+     * Reduces the image to every tile size, they will be
+     * written into the atlas files later.
      *
-     * @param image BufferedImage
-     * @return average pixel value.
+     * @param pixelKernel of the current thread
+     * @param imageBuffer the opened image
+     * @return packed tiles
      */
-    private int calculatePixel(BufferedImage image) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int imageSize = width * height;
-
-        int red = 0;
-        int green = 0;
-        int blue = 0;
-
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                int rgb = image.getRGB(i, j);
-
-                red += (rgb >> 16) & 0xFF;
-                green += (rgb >> 8) & 0xFF;
-                blue += rgb & 0xFF;
-            }
+    private byte[][] reduceImage(PixelKernel pixelKernel,
+                                 BufferedImage imageBuffer) {
+        byte[][] thumbnails = new byte[tileSizes.length][];
+
+        for (int i = 0; i < tileSizes.length; i++) {
+            int[] tile = new int[tileSizes[i][0] * tileSizes[i][1]];
+            pixelKernel.reduce(imageBuffer, tileSizes[i][0], tileSizes[i][1], tile);
+            thumbnails[i] = ThumbnailAtlas.pack(tile);
         }
 
-        return (red / imageSize) << 16 |
-                (green / imageSize) << 8 |
-                blue / imageSize;
+        return thumbnails;
     }
 }
@@ -0,0 +1,167 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes the atlases from sorted runs of images, like the segments of
+ * an IndexingPipeline and the images we keep from the last index, and
+ * gives the images for index.bin in the same order. The runs are
+ * merged like in a merge sort, a record at a time, so only the head of
+ * every run is in memory, and the tiles go into the atlases as they
+ * come rather than being kept until the end.
+ */
+class IndexMerger {
+    /**
+     * Images sorted like Image.compareTo(), with their tiles.
+     */
+    interface Run extends Closeable {
+        /**
+         * @return the next image, or null at the end.
+         * @throws IOException ..
+         */
+        Image next() throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * @param images sorted Image objects
+     * @return a Run of them
+     */
+    static Run of(List<Image> images) {
+        Iterator<Image> iterator = images.iterator();
+        return () -> iterator.hasNext() ? iterator.next() : null;
+    }
+
+    // A run and its next image
+    private static class Head implements Comparable<Head> {
+        final Run run;
+        final int order;
+        Image image;
+
+        Head(Run run, int order, Image image) {
+            this.run = run;
+            this.order = order;
+            this.image = image;
+        }
+
+        // Equal images come from the first run first, so a merge
+        // gives the same result every time.
+        @Override
+        public int compareTo(Head other) {
+            int result = image.compareTo(other.image);
+            return result != 0 ? result : Integer.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Gets the merged images one after another.
+     */
+    interface Sink {
+        void add(Image image) throws IOException;
+    }
+
+    /**
+     * Merges the runs into a sink. An image which is in two runs, with
+     * the same path and norm, is given once, from the first of them.
+     *
+     * @param runs ..
+     * @param sink ..
+     * @throws IOException ..
+     */
+    static void merge(List<Run> runs, Sink sink) throws IOException {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, runs.size()));
+        for (int i = 0; i < runs.size(); i++) {
+            Image image = runs.get(i).next();
+            if (image != null)
+                heads.add(new Head(runs.get(i), i, image));
+        }
+
+        Image last = null;
+
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            Image image = head.image;
+
+            // Equal images are next to each other
+            if (last == null || last.norm != image.norm || !last.path.equals(image.path))
+                sink.add(image);
+            last = image;
+
+            head.image = head.run.next();
+            if (head.image != null)
+                heads.add(head);
+        }
+    }
+
+    /**
+     * Merges the runs, the atlases are written aside and moved in
+     * place when they are complete, an atlas whose tiles are missing
+     * is deleted. The runs are closed at the end.
+     * With a Deduplicator which has decided on the same runs, copies
+     * get the norm DUPLICATE_NORM and no tiles in the atlases.
+     *
+     * @param runs       ..
+     * @param atlasFiles atlas file of every tile size
+     * @param tileSizes  ..
+     * @param capacity   number of images we expect
+     * @param duplicates the decided copies, or null
+     * @param generation of the atlases, see ThumbnailAtlas
+     * @return all images in the order of the index, without their
+     * tiles, failed ones and copies included.
+     * @throws IOException ..
+     */
+    static TileStore merge(List<Run> runs, File[] atlasFiles, int[][] tileSizes,
+                           int capacity, Deduplicator duplicates,
+                           long generation) throws IOException {
+        ThumbnailAtlas.Writer[] writers = new ThumbnailAtlas.Writer[tileSizes.length];
+
+        try {
+            for (int i = 0; i < tileSizes.length; i++)
+                writers[i] = new ThumbnailAtlas.Writer(atlasFiles[i],
+                        tileSizes[i][0], tileSizes[i][1], generation);
+
+            TileStore tiles = new TileStore(capacity);
+            int[] position = {0};
+
+            merge(runs, image -> {
+                if (duplicates != null) {
+                    int kept = duplicates.keptOf(position[0]);
+
+                    if (kept == Deduplicator.DROPPED) {
+                        duplicates.dropped(image);
+                        position[0]++;
+                        return;
+                    }
+                    if (kept >= 0)
+                        image.norm = Deduplicator.DUPLICATE_NORM;
+
+                    duplicates.stored(position[0]++, tiles.size());
+                }
+
+                tiles.add(image);
+                if (image.norm > 0) {
+                    for (int i = 0; i < writers.length; i++)
+                        writers[i].add(image.thumbnails == null ? null : image.thumbnails[i]);
+                }
+            });
+
+            for (ThumbnailAtlas.Writer writer : writers)
+                writer.finish();
+
+            return tiles;
+        } finally {
+            for (ThumbnailAtlas.Writer writer : writers) {
+                if (writer != null)
+                    writer.close();
+            }
+            for (Run run : runs)
+                run.close();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A part of an index which is being built: processed images, sorted
+ * like index.bin, with their tiles, so the index and the atlases can
+ * be written from the segments without decoding anything again.
+ * A segment is written aside and moved in place when it's complete,
+ * so the segments of a directory are the work which is done if an
+ * indexing run is interrupted.
+ * <pre>
+ * header:  magic, version, count, number of tile sizes,
+ *          width and height of every tile size (ints)
+ * records: red, green, blue, flags (bytes), norm (int),
+ *          file length, last modified, content hash,
+ *          perceptual hash (longs),
+ *          path length (int), UTF-8 bytes of the path,
+ *          the packed tile of every size, unless it failed
+ * </pre>
+ */
+class IndexSegment {
+    static final String DIRECTORY = "segments";
+    private static final int MAGIC = 0x4D534547; // "MSEG"
+    private static final int VERSION = 2;
+
+    // Segments which are read at the same time, more of them are
+    // merged into bigger ones first, since every one is an open file.
+    static final int MAX_RUNS = 64;
+
+    /**
+     * @param number of the segment
+     * @return file name of the segment
+     */
+    static String fileName(int number) {
+        return String.format("segment%06d.bin", number);
+    }
+
+    /**
+     * @param directory of the segments
+     * @return complete segment files, in the order they were written.
+     */
+    static File[] list(File directory) {
+        File[] files = directory.listFiles((dir, name) ->
+                name.startsWith("segment") && name.endsWith(".bin"));
+
+        if (files == null)
+            return new File[0];
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @param directory of the segments
+     * @return the number of the next segment
+     */
+    static int nextNumber(File directory) {
+        File[] files = list(directory);
+        if (files.length == 0)
+            return 0;
+
+        String name = files[files.length - 1].getName();
+        try {
+            return Integer.parseInt(name.substring(7, name.length() - 4)) + 1;
+        } catch (NumberFormatException e) {
+            return files.length;
+        }
+    }
+
+    /**
+     * Writes a segment, the images must be sorted already.
+     *
+     * @param file      is the segment file.
+     * @param tileSizes ..
+     * @param images    processed Image objects with their tiles
+     * @throws IOException ..
+     */
+    static void write(File file, int[][] tileSizes, List<Image> images) throws IOException {
+        try (Writer writer = new Writer(file, tileSizes)) {
+            for (Image image : images)
+                writer.add(image);
+            writer.finish();
+        }
+    }
+
+    /**
+     * Writes a segment a record at a time, aside, it's moved in
+     * place by finish().
+     */
+    static class Writer implements Closeable {
+        private final File file;
+        private final File tmp;
+        private final int[][] tileSizes;
+        private final FileOutputStream fileOutputStream;
+        private final DataOutputStream out;
+        private int count;
+        private boolean finished;
+
+        /**
+         * @param file      is the segment file.
+         * @param tileSizes ..
+         * @throws IOException ..
+         */
+        Writer(File file, int[][] tileSizes) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.tileSizes = tileSizes;
+            this.fileOutputStream = new FileOutputStream(tmp);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1 << 16));
+
+            // The count is written when we know it
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            out.writeInt(tileSizes.length);
+            for (int[] size : tileSizes) {
+                out.writeInt(size[0]);
+                out.writeInt(size[1]);
+            }
+        }
+
+        /**
+         * @param image processed Image object with its tiles
+         * @throws IOException ..
+         */
+        void add(Image image) throws IOException {
+            byte[] path = image.path.getBytes(StandardCharsets.UTF_8);
+
+            out.writeByte(image.red);
+            out.writeByte(image.green);
+            out.writeByte(image.blue);
+            out.writeByte(image.norm > 0 ? 0 : FileGenerator.FLAG_FAILED);
+            out.writeInt(image.norm);
+            out.writeLong(image.length);
+            out.writeLong(image.lastModified);
+            out.writeLong(image.contentHash);
+            out.writeLong(image.dHash);
+            out.writeInt(path.length);
+            out.write(path);
+
+            if (image.norm > 0) {
+                for (int i = 0; i < tileSizes.length; i++)
+                    out.write(image.thumbnails[i]);
+            }
+            count++;
+        }
+
+        /**
+         * Moves the segment in place once it's on the disk.
+         *
+         * @throws IOException ..
+         */
+        void finish() throws IOException {
+            out.flush();
+            fileOutputStream.getFD().sync();  // A checkpoint must be on the disk
+            out.close();
+            finished = true;
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rws")) {
+                raf.seek(8);
+                raf.writeInt(count);
+            }
+
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Without finish(), nothing is written
+        @Override
+        public void close() throws IOException {
+            if (finished)
+                return;
+
+            out.close();
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Merges the oldest segments into one until there are not more
+     * than MAX_RUNS of them. The merged segment is in place before
+     * its parts are deleted, and an image which is in both for a
+     * while is only taken once by IndexMerger.
+     *
+     * @param directory of the segments
+     * @param tileSizes ..
+     * @throws IOException ..
+     */
+    static void compact(File directory, int[][] tileSizes) throws IOException {
+        compact(directory, tileSizes, MAX_RUNS);
+    }
+
+    /**
+     * Merges the oldest segments into one until there are not more
+     * than the given number of them, like compact(directory, tileSizes).
+     *
+     * @param directory of the segments
+     * @param tileSizes ..
+     * @param maxRuns   is the number of segments left at most.
+     * @throws IOException ..
+     */
+    static void compact(File directory, int[][] tileSizes, int maxRuns) throws IOException {
+        File[] files;
+
+        while ((files = list(directory)).length > Math.max(1, maxRuns)) {
+            File[] parts = Arrays.copyOf(files, Math.min(MAX_RUNS, files.length));
+            List<IndexMerger.Run> runs = new ArrayList<>();
+
+            try (Writer writer = new Writer(new File(directory,
+                    fileName(nextNumber(directory))), tileSizes)) {
+                for (File part : parts)
+                    runs.add(new Reader(part, tileSizes));
+
+                IndexMerger.merge(runs, writer::add);
+                writer.finish();
+            } finally {
+                for (IndexMerger.Run run : runs)
+                    run.close();
+            }
+
+            for (File part : parts)
+                Files.deleteIfExists(part.toPath());
+        }
+    }
+
+    /**
+     * Deletes the segments which are older than the given time, like
+     * the ones which are already in an index written after them.
+     *
+     * @param directory of the segments
+     * @param time      in milliseconds
+     * @throws IOException ..
+     */
+    static void deleteOlderThan(File directory, long time) throws IOException {
+        for (File file : list(directory)) {
+            if (file.lastModified() < time)
+                Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Paths of the images in the segments of a directory, which
+     * don't need to be processed again. Segments which lack some of
+     * the tile sizes can't be used, so all of them are deleted.
+     *
+     * @param directory of the segments
+     * @param tileSizes ..
+     * @return paths
+     * @throws IOException ..
+     */
+    static Set<String> readPaths(File directory, int[][] tileSizes) throws IOException {
+        Set<String> paths = new HashSet<>();
+
+        for (File file : list(directory)) {
+            try (Reader reader = new Reader(file, tileSizes)) {
+                Image image;
+                while ((image = reader.next()) != null)
+                    paths.add(image.path);
+            } catch (IOException e) {
+                System.err.println("Can't resume from " + file + ": " + e.getMessage());
+                delete(directory);
+                return new HashSet<>();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Deletes the segments and their directory.
+     *
+     * @param directory of the segments
+     * @throws IOException ..
+     */
+    static void delete(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+            Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(directory.toPath());
+    }
+
+    /**
+     * Reads the records of a segment one after another.
+     */
+    static class Reader implements IndexMerger.Run {
+        private final File file;
+        private final DataInputStream in;
+        private final int[][] tileSizes;
+        private int[] tileLengths;  // of every tile size of the segment
+        private int[] positions;    // of them in tileSizes, -1 if we don't want it
+        private int left;
+
+        /**
+         * @param file      is the segment file.
+         * @param tileSizes the segment must have, the tiles of other
+         *                  sizes it has are skipped.
+         * @throws IOException if the segment lacks some of these tile sizes.
+         */
+        Reader(File file, int[][] tileSizes) throws IOException {
+            this.file = file;
+            this.tileSizes = tileSizes;
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16));
+
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Not an index segment: " + file);
+
+                left = in.readInt();
+
+                int sizes = in.readInt();
+                if (sizes < 0)
+                    throw new IOException("Not an index segment: " + file);
+
+                tileLengths = new int[sizes];
+                positions = new int[sizes];
+                int found = 0;
+
+                for (int j = 0; j < sizes; j++) {
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    tileLengths[j] = 3 * width * height;
+                    positions[j] = -1;
+
+                    for (int i = 0; i < tileSizes.length; i++) {
+                        if (tileSizes[i][0] == width && tileSizes[i][1] == height &&
+                                positions[j] < 0) {
+                            positions[j] = i;
+                            found++;
+                        }
+                    }
+                }
+
+                if (found != tileSizes.length)
+                    throw new IOException("Other tile sizes in " + file);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the next image with its tiles, or null at the end.
+         * @throws IOException ..
+         */
+        @Override
+        public Image next() throws IOException {
+            if (left == 0)
+                return null;
+            left--;
+
+            try {
+                int red = in.readUnsignedByte();
+                int green = in.readUnsignedByte();
+                int blue = in.readUnsignedByte();
+                in.readByte();  // The flags, a failed image has no norm anyway
+                int norm = in.readInt();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                long contentHash = in.readLong();
+                long dHash = in.readLong();
+
+                byte[] path = new byte[in.readInt()];
+                in.readFully(path);
+
+                Image image = new Image(red, green, blue, norm,
+                        new String(path, StandardCharsets.UTF_8));
+                image.length = length;
+                image.lastModified = lastModified;
+                image.contentHash = contentHash;
+                image.dHash = dHash;
+
+                if (norm > 0) {
+                    image.thumbnails = new byte[tileSizes.length][];
+                    for (int j = 0; j < tileLengths.length; j++) {
+                        byte[] tile = new byte[tileLengths[j]];
+                        in.readFully(tile);
+
+                        if (positions[j] >= 0)
+                            image.thumbnails[positions[j]] = tile;
+                    }
+                }
+                return image;
+            } catch (EOFException e) {
+                throw new IOException("Truncated index segment: " + file, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
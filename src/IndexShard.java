@@ -0,0 +1,217 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of the image directory which is indexed by its own process,
+ * so a huge library is indexed by several of them at the same time,
+ * on one machine or on several which share the directory. Shard i of
+ * n holds the images whose parent directory, relative to the image
+ * directory, has a hash of i modulo n, so a directory always belongs
+ * to the same shard, whoever walks it and wherever it's mounted.
+ * <p>
+ * A shard writes sorted IndexSegment files into its own directory,
+ * and a file with the tile sizes of its segments when it's complete,
+ * like "20x20 4x4":
+ * <pre>
+ * shards/&lt;i&gt;of&lt;n&gt;/segmentNNNNNN.bin
+ * shards/&lt;i&gt;of&lt;n&gt;/complete
+ * </pre>
+ * The next Library.open() merges the complete shards into the index:
+ * their images replace the ones of the same shards in it, the images
+ * of other shards are kept. So a single shard can be run again on its
+ * own, and only its part of the library is decoded again. A shard
+ * which was indexed with other tile sizes than the run which merges it
+ * is indexed again first, see Library.open().
+ */
+class IndexShard {
+    static final String DIRECTORY = "shards";
+    private static final String COMPLETE_NAME = "complete";
+
+    final int number;
+    final int count;
+
+    /**
+     * @param number of the shard, from 0
+     * @param count  of shards
+     */
+    IndexShard(int number, int count) {
+        if (count < 1 || number < 0 || number >= count)
+            throw new IllegalArgumentException("No shard " + number + " of " + count);
+
+        this.number = number;
+        this.count = count;
+    }
+
+    /**
+     * @param text like "2/8", the third of eight shards
+     * @return IndexShard object
+     */
+    static IndexShard parse(String text) {
+        int slash = text.indexOf('/');
+        if (slash < 0)
+            throw new IllegalArgumentException("A shard is <number>/<count>: " + text);
+
+        return new IndexShard(Integer.parseInt(text.substring(0, slash).trim()),
+                Integer.parseInt(text.substring(slash + 1).trim()));
+    }
+
+    /**
+     * String.hashCode() is the same in every JVM, so every process
+     * puts a directory into the same shard.
+     *
+     * @param root      the image directory
+     * @param directory of images, under the root
+     * @param count     of shards
+     * @return number of the shard of the directory
+     */
+    static int of(Path root, Path directory, int count) {
+        String relative = root.toAbsolutePath().normalize()
+                .relativize(directory.toAbsolutePath().normalize())
+                .toString().replace(File.separatorChar, '/');
+        return Math.floorMod(relative.hashCode(), count);
+    }
+
+    /**
+     * @param root  the image directory
+     * @param path  of an image
+     * @param count of shards
+     * @return number of the shard of the image
+     */
+    static int of(Path root, String path, int count) {
+        Path parent = Paths.get(path).toAbsolutePath().getParent();
+        return of(root, parent == null ? root : parent, count);
+    }
+
+    /**
+     * @param root      the image directory
+     * @param directory of images
+     * @return whether the images of the directory belong to this shard
+     */
+    boolean contains(Path root, Path directory) {
+        return of(root, directory, count) == number;
+    }
+
+    /**
+     * @param directoryPath the image directory
+     * @return directory of the segments of this shard
+     */
+    File directory(String directoryPath) {
+        return new File(directoryPath + "/" + DIRECTORY + "/" + number + "of" + count);
+    }
+
+    /**
+     * @param directoryPath the image directory
+     * @return whether all images of this shard are in its segments
+     */
+    boolean isComplete(String directoryPath) {
+        return new File(directory(directoryPath), COMPLETE_NAME).isFile();
+    }
+
+    /**
+     * @param directoryPath the image directory
+     * @param tileSizes     of the segments of the shard
+     * @throws IOException ..
+     */
+    void markComplete(String directoryPath, int[][] tileSizes) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int[] size : tileSizes)
+            text.append(text.length() == 0 ? "" : " ").append(size[0]).append('x').append(size[1]);
+
+        Files.write(new File(directory(directoryPath), COMPLETE_NAME).toPath(),
+                text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param directoryPath the image directory
+     * @return the tile sizes of the segments of this shard, null if
+     * it's not complete or they are not known.
+     */
+    int[][] tileSizes(String directoryPath) {
+        try {
+            String text = new String(Files.readAllBytes(new File(directory(directoryPath),
+                    COMPLETE_NAME).toPath()), StandardCharsets.UTF_8).trim();
+            if (text.isEmpty())
+                return null;
+
+            String[] sizes = text.split("\\s+");
+            int[][] tileSizes = new int[sizes.length][];
+            for (int i = 0; i < sizes.length; i++) {
+                int x = sizes[i].indexOf('x');
+                tileSizes[i] = new int[]{Integer.parseInt(sizes[i].substring(0, x)),
+                        Integer.parseInt(sizes[i].substring(x + 1))};
+            }
+            return tileSizes;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param directoryPath the image directory
+     * @param tileSizes     we want
+     * @return whether the segments of this shard have all of them
+     */
+    boolean hasTileSizes(String directoryPath, int[][] tileSizes) {
+        int[][] sizes = tileSizes(directoryPath);
+        if (sizes == null)
+            return false;
+
+        for (int[] size : tileSizes) {
+            boolean found = false;
+            for (int[] other : sizes)
+                found |= other[0] == size[0] && other[1] == size[1];
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shards which are still running, or were interrupted, are not
+     * listed, they are merged once they are complete.
+     *
+     * @param directoryPath the image directory
+     * @return complete shards, in the order of their numbers.
+     * @throws IOException if there are complete shards of different
+     *                     counts, their images would overlap.
+     */
+    static List<IndexShard> listComplete(String directoryPath) throws IOException {
+        List<IndexShard> shards = new ArrayList<>();
+        File[] directories = new File(directoryPath + "/" + DIRECTORY).listFiles(File::isDirectory);
+        if (directories == null)
+            return shards;
+
+        for (File directory : directories) {
+            String[] parts = directory.getName().split("of");
+            IndexShard shard;
+            try {
+                shard = new IndexShard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+            } catch (RuntimeException e) {
+                continue;  // Not one of ours
+            }
+
+            if (!shard.isComplete(directoryPath))
+                continue;
+
+            if (!shards.isEmpty() && shards.get(0).count != shard.count)
+                throw new IOException("Shards of " + shards.get(0).count + " and " +
+                        shard.count + " processes in " + directory.getParent() +
+                        ", one of them must be deleted");
+            shards.add(shard);
+        }
+
+        shards.sort((first, second) -> Integer.compare(first.number, second.number));
+        return shards;
+    }
+
+    @Override
+    public String toString() {
+        return number + "/" + count;
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Indexes images in stages which run at the same time, every stage
+ * gives its work to the next one through a bounded queue:
+ * <pre>
+ * scan -> read bytes -> decode and reduce -> write segments
+ * </pre>
+ * When a queue is full the stage before it waits, so however big the
+ * library is, only a few hundred images are in memory at once, and a
+ * walk which is faster than the decoders can't fill the heap. Files
+ * are read by their own threads, so a slow disk or a network mount
+ * doesn't keep the decoders waiting.
+ * Processed images are sorted and written into a new IndexSegment
+ * every few thousand images or seconds. These are the checkpoints:
+ * if a run is interrupted, the images of its segments are skipped
+ * by the next one.
+ */
+class IndexingPipeline {
+    // Images of a segment, and seconds between two checkpoints
+    private final static int segmentImages = 4096;
+    private final static int checkpointSeconds = 30;
+
+    // Files waiting to be read, and processed images waiting to be
+    // written; the bytes of the files wait two for every decoder.
+    private final static int pathsQueueSize = 1024;
+    private final static int resultsQueueSize = 256;
+
+    // How often a waiting stage looks whether the others have stopped
+    private final static int pollMillis = 100;
+
+    // Bigger files are not read, they fail like broken ones, a few
+    // of them are in memory at once.
+    private final static long maxFileBytes = 256L << 20;
+
+    /**
+     * Is told about the progress of indexing, notice that its
+     * methods are called from the worker threads.
+     */
+    interface Listener {
+        /**
+         * @param done  number of processed images
+         * @param total number of all images
+         */
+        default void progress(int done, int total) {
+        }
+
+        /**
+         * @param image     Image object which can't be processed
+         * @param exception the reason
+         */
+        void failed(Image image, Exception exception);
+    }
+
+    /**
+     * Where images come from while they are processed.
+     */
+    interface Source {
+        /**
+         * Gives every image to the consumer, which may be called
+         * from several threads at the same time.
+         *
+         * @param consumer ..
+         * @throws IOException if the images can't be found.
+         */
+        void scan(Consumer<Image> consumer) throws IOException;
+    }
+
+    // Read files, the bytes are null if the file can't be read
+    private static class Read {
+        final Image image;
+        final byte[] bytes;
+        final IOException error;
+
+        Read(Image image, byte[] bytes, IOException error) {
+            this.image = image;
+            this.bytes = bytes;
+            this.error = error;
+        }
+    }
+
+    // Ends of the queues, every worker of the next stage gets one
+    private static final Image END = new Image("");
+    private static final Read END_READ = new Read(END, null, null);
+
+    private final File directory;
+    private final int[][] tileSizes;
+    private final ImageProcessor imageProcessor;
+    private final int readers;
+    private final int decoders;
+    private Listener listener;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private int nextSegment;
+
+    /**
+     * Uses as many decoders as available processors, and four
+     * threads to read files.
+     *
+     * @param directory of the segments
+     * @param tileSizes is the width and height of every tile size
+     *                  we want to keep in the atlas.
+     */
+    IndexingPipeline(File directory, int[][] tileSizes) {
+        this(directory, tileSizes, 4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param directory of the segments
+     * @param tileSizes ..
+     * @param readers   is the number of threads reading files.
+     * @param decoders  is the number of threads decoding them.
+     */
+    IndexingPipeline(File directory, int[][] tileSizes, int readers, int decoders) {
+        this.directory = directory;
+        this.tileSizes = tileSizes;
+        this.imageProcessor = new ImageProcessor(tileSizes);
+        this.readers = readers;
+        this.decoders = decoders;
+    }
+
+    /**
+     * @param listener is called from the worker threads, progress()
+     *                 gets the number found so far as the total.
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops indexing, the images which are processed already are
+     * written into a last segment and run() throws a
+     * CancellationException.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return number of bytes of all files read so far
+     */
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Processes the images of a source into new segments, the
+     * segments which are already in the directory are kept.
+     *
+     * @param source ..
+     * @return number of processed images, failed ones included.
+     * @throws IOException if the source fails or a segment can't
+     *                     be written.
+     * @throws CancellationException if cancel() is called.
+     */
+    int run(Source source) throws IOException {
+        Files.createDirectories(directory.toPath());
+        nextSegment = IndexSegment.nextNumber(directory);
+
+        BlockingQueue<Image> paths = new ArrayBlockingQueue<>(pathsQueueSize);
+        BlockingQueue<Read> bytes = new ArrayBlockingQueue<>(2 * decoders);
+        BlockingQueue<Image> results = new ArrayBlockingQueue<>(resultsQueueSize);
+
+        AtomicInteger found = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger readersLeft = new AtomicInteger(readers);
+        AtomicInteger decodersLeft = new AtomicInteger(decoders);
+
+        ExecutorService threads = Executors.newFixedThreadPool(readers + decoders + 1);
+        List<Future<?>> stages = new ArrayList<>();
+
+        // The last worker of a stage ends the next one,
+        // whatever the reason it stops for.
+        for (int i = 0; i < readers; i++)
+            stages.add(threads.submit(() -> {
+                try {
+                    stage(() -> read(paths, bytes));
+                } finally {
+                    if (readersLeft.decrementAndGet() == 0)
+                        end(bytes, END_READ, decoders);
+                }
+                return null;
+            }));
+
+        for (int i = 0; i < decoders; i++)
+            stages.add(threads.submit(() -> {
+                try {
+                    stage(() -> decode(bytes, results));
+                } finally {
+                    if (decodersLeft.decrementAndGet() == 0)
+                        end(results, END, 1);
+                }
+                return null;
+            }));
+
+        stages.add(threads.submit(() -> {
+            stage(() -> write(results, done, found));
+            return null;
+        }));
+
+        try {
+            source.scan(image -> {
+                found.incrementAndGet();
+                try {
+                    put(paths, image);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new CancellationException("Indexing is cancelled");
+                }
+            });
+        } catch (CancellationException e) {
+            // The stages have stopped, or are stopping
+        } catch (IOException | RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            end(paths, END, readers);
+        }
+
+        try {
+            for (Future<?> stage : stages) {
+                try {
+                    stage.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                } catch (ExecutionException e) {
+                    // The failure is recorded by the stage
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        Throwable failure = this.failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new IOException(failure);
+
+        if (cancelled)
+            throw new CancellationException("Indexing is cancelled");
+
+        return done.get();
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // Records the first failure, so every other stage stops
+    private void stage(Stage stage) throws Exception {
+        try {
+            stage.run();
+        } catch (CancellationException e) {
+            // Stopped by another stage
+        } catch (InterruptedException e) {
+            cancel();
+        } catch (Exception | Error e) {
+            if (failure == null)
+                failure = e;
+            throw e;
+        }
+    }
+
+    private boolean stopped() {
+        return cancelled || failure != null;
+    }
+
+    // Reads every file at once, a decoder gets the bytes
+    private void read(BlockingQueue<Image> paths,
+                      BlockingQueue<Read> bytes) throws InterruptedException {
+        Image image;
+        while ((image = take(paths)) != END) {
+            Read read;
+            try {
+                long size = Files.size(Paths.get(image.path));
+                if (size > maxFileBytes)
+                    throw new IOException("The file is too big to index, " + size + " bytes");
+
+                byte[] content = Files.readAllBytes(Paths.get(image.path));
+                bytesRead.addAndGet(content.length);
+                read = new Read(image, content, null);
+            } catch (IOException e) {
+                read = new Read(image, null, e);
+            }
+            put(bytes, read);
+        }
+    }
+
+    private void decode(BlockingQueue<Read> bytes,
+                        BlockingQueue<Image> results) throws InterruptedException {
+        Read read;
+        while ((read = take(bytes)) != END_READ)
+            put(results, process(read));
+    }
+
+    // Processes a single image, failures are recorded, not thrown
+    private Image process(Read read) {
+        try {
+            if (read.error != null)
+                throw read.error;
+
+            return imageProcessor.process(read.image, read.bytes);
+        } catch (Exception e) {
+            // Some image i got can't be opened correctly, here we
+            // play a trick to avoid they are recorded as good ones.
+            Image failed = new Image(read.image.path);
+            failed.norm = -100;
+            failed.length = read.image.length;
+            failed.lastModified = read.image.lastModified;
+
+            if (listener != null)
+                listener.failed(read.image, e);
+
+            return failed;
+        }
+    }
+
+    /**
+     * Collects processed images and writes a segment when there are
+     * enough of them, or when the last checkpoint is too old. What is
+     * left is written at the end, even if the others have stopped.
+     */
+    private void write(BlockingQueue<Image> results, AtomicInteger done,
+                       AtomicInteger found) throws IOException, InterruptedException {
+        List<Image> buffer = new ArrayList<>();
+        long checkpoint = System.nanoTime();
+
+        try {
+            while (true) {
+                Image image = results.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (image == END || (image == null && stopped()))
+                    break;
+
+                if (image != null) {
+                    buffer.add(image);
+
+                    int count = done.incrementAndGet();
+                    if (listener != null)
+                        listener.progress(count, found.get());
+                }
+
+                if (buffer.size() >= segmentImages || (!buffer.isEmpty() &&
+                        System.nanoTime() - checkpoint >= checkpointSeconds * 1_000_000_000L)) {
+                    writeSegment(buffer);
+                    checkpoint = System.nanoTime();
+                }
+            }
+        } finally {
+            if (!buffer.isEmpty())
+                writeSegment(buffer);
+        }
+    }
+
+    private void writeSegment(List<Image> buffer) throws IOException {
+        Collections.sort(buffer);
+        IndexSegment.write(new File(directory, IndexSegment.fileName(nextSegment++)),
+                tileSizes, buffer);
+        buffer.clear();
+    }
+
+    // Once the stages have stopped, nothing new is started
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        while (!stopped()) {
+            T item = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+            if (item != null)
+                return item;
+        }
+        throw new CancellationException();
+    }
+
+    // Waits while the queue is full, unless the stages have stopped
+    private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!stopped()) {
+            if (queue.offer(item, pollMillis, TimeUnit.MILLISECONDS))
+                return;
+        }
+        throw new CancellationException();
+    }
+
+    // Every worker of the next stage gets an end
+    private <T> void end(BlockingQueue<T> queue, T end, int workers) {
+        try {
+            for (int i = 0; i < workers; i++)
+                put(queue, end);
+        } catch (CancellationException | InterruptedException e) {
+            // The next stage stops by itself
+        }
+    }
+}
@@ -0,0 +1,404 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * An approximate search of grids for libraries of millions of images,
+ * an inverted file index: the grids are clustered by k-means into
+ * lists, and a search only scans the lists whose centers are the
+ * nearest ones to the goal. More probed lists find the exact answer
+ * more often, but take longer.
+ * The grids of a list are copied next to each other, so a list is
+ * scanned in one pass through memory.
+ * The lists are saved next to index.bin and read when we run again,
+ * they are only built again if the index has changed: its last
+ * modified time and length are kept in the header.
+ */
+class IvfIndex implements GridIndex {
+    private static final int MAGIC = 0x4D495646; // "MIVF"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 36;
+
+    // k-means runs on a sample of this many grids per list
+    private static final int SAMPLES_PER_LIST = 64;
+    private static final int ITERATIONS = 10;
+
+    private final GridDescriptors grids;
+    private final int gridSize;
+    private final int dimensions;
+    private final int lists;
+    private final int probes;
+
+    private final float[] centroids;  // of every list, one after another
+    private final int[] listStarts;   // list i is [listStarts[i], listStarts[i + 1])
+    private final int[] members;      // list indices of the images of every list
+    private final int[] listValues;   // their grids, in the same order
+
+    private IvfIndex(GridDescriptors grids, int lists, int probes,
+                     float[] centroids, int[] listStarts, int[] members) {
+        this.grids = grids;
+        this.gridSize = grids.getGridSize();
+        this.dimensions = grids.dimensions();
+        this.lists = lists;
+        this.probes = Math.max(1, Math.min(probes, lists));
+        this.centroids = centroids;
+        this.listStarts = listStarts;
+        this.members = members;
+        this.listValues = new int[members.length * dimensions];
+
+        int[] values = grids.values();
+        for (int i = 0; i < members.length; i++)
+            System.arraycopy(values, members[i] * dimensions,
+                    listValues, i * dimensions, dimensions);
+    }
+
+    /**
+     * @param gridSize ..
+     * @return file name of the lists of this grid size.
+     */
+    static String fileName(int gridSize) {
+        return "ivf" + gridSize + "x" + gridSize + ".bin";
+    }
+
+    /**
+     * Reads the lists if they match the library, or builds new ones
+     * and saves them.
+     *
+     * @param file   is the file of the lists.
+     * @param grids  of the library
+     * @param index  is index.bin, the lists are built again when
+     *               it changes.
+     * @param lists  number of lists, 0 for the square root of the
+     *               number of images.
+     * @param probes number of lists a search scans
+     * @return IvfIndex object
+     * @throws IOException ..
+     */
+    static IvfIndex open(File file, GridDescriptors grids, File index,
+                         int lists, int probes) throws IOException {
+        int count = grids.size();
+
+        // No grid to cluster, like a library whose images all failed,
+        // so there are no lists and nearest() finds nothing.
+        if (count == 0)
+            return new IvfIndex(grids, 0, probes, new float[0], new int[1], new int[0]);
+
+        if (lists <= 0)
+            lists = (int) Math.sqrt(count);
+        lists = Math.max(1, Math.min(lists, count));
+
+        long lastModified = index.lastModified();
+        long length = index.length();
+
+        IvfIndex ivf = read(file, grids, lastModified, length, lists, probes);
+        if (ivf != null)
+            return ivf;
+
+        ivf = build(grids, lists, probes);
+        ivf.write(file, count, lastModified, length);
+        return ivf;
+    }
+
+    // Reads the file, null if it doesn't match
+    private static IvfIndex read(File file, GridDescriptors grids, long lastModified,
+                                 long length, int lists, int probes) throws IOException {
+        int count = grids.size();
+        int dimensions = grids.dimensions();
+        long size = HEADER_SIZE + 4L * lists * dimensions + 4L * (lists + 1) + 4L * count;
+
+        if (!file.isFile() || file.length() != size)
+            return null;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt() != MAGIC ||
+                    buffer.getInt() != VERSION ||
+                    buffer.getInt() != grids.getGridSize() ||
+                    buffer.getInt() != count ||
+                    buffer.getInt() != lists ||
+                    buffer.getLong() != lastModified ||
+                    buffer.getLong() != length)
+                return null;
+
+            float[] centroids = new float[lists * dimensions];
+            int[] listStarts = new int[lists + 1];
+            int[] members = new int[count];
+
+            buffer.asFloatBuffer().get(centroids);
+            buffer.position(buffer.position() + 4 * centroids.length);
+            buffer.asIntBuffer().get(listStarts);
+            buffer.position(buffer.position() + 4 * listStarts.length);
+            buffer.asIntBuffer().get(members);
+
+            return new IvfIndex(grids, lists, probes, centroids, listStarts, members);
+        }
+    }
+
+    private void write(File file, int count, long lastModified,
+                       long length) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(gridSize);
+            out.writeInt(count);
+            out.writeInt(lists);
+            out.writeLong(lastModified);
+            out.writeLong(length);
+
+            for (float centroid : centroids)
+                out.writeFloat(centroid);
+            for (int start : listStarts)
+                out.writeInt(start);
+            for (int member : members)
+                out.writeInt(member);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Clusters a sample of the grids by k-means, then puts every grid
+     * into the list of its nearest center.
+     */
+    private static IvfIndex build(GridDescriptors grids, int lists, int probes) {
+        int count = grids.size();
+        int dimensions = grids.dimensions();
+        int[] values = grids.values();
+        Random random = new Random(count);
+
+        // A random sample, the first ones are the first centers
+        int[] sample = new int[Math.min(count, lists * SAMPLES_PER_LIST)];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        for (int i = 0; i < sample.length; i++) {
+            int j = i + random.nextInt(count - i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+            sample[i] = order[i];
+        }
+
+        float[] centroids = new float[lists * dimensions];
+        for (int c = 0; c < lists; c++)
+            for (int d = 0; d < dimensions; d++)
+                centroids[c * dimensions + d] = values[sample[c] * dimensions + d];
+
+        int[] assignment = new int[sample.length];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            float[] current = centroids;
+            IntStream.range(0, sample.length).parallel().forEach(i ->
+                    assignment[i] = nearestCentroid(current, lists, dimensions,
+                            values, sample[i] * dimensions));
+
+            double[] sums = new double[lists * dimensions];
+            int[] sizes = new int[lists];
+            for (int i = 0; i < sample.length; i++) {
+                int c = assignment[i];
+                sizes[c]++;
+                for (int d = 0; d < dimensions; d++)
+                    sums[c * dimensions + d] += values[sample[i] * dimensions + d];
+            }
+
+            centroids = new float[lists * dimensions];
+            for (int c = 0; c < lists; c++) {
+                // An empty list starts again from a random grid
+                int from = sizes[c] == 0 ? sample[random.nextInt(sample.length)] : -1;
+
+                for (int d = 0; d < dimensions; d++)
+                    centroids[c * dimensions + d] = from >= 0
+                            ? values[from * dimensions + d]
+                            : (float) (sums[c * dimensions + d] / sizes[c]);
+            }
+        }
+
+        // Every grid goes into a list, then the lists are
+        // laid out one after another by a counting sort.
+        float[] result = centroids;
+        int[] listOf = new int[count];
+        IntStream.range(0, count).parallel().forEach(i ->
+                listOf[i] = nearestCentroid(result, lists, dimensions,
+                        values, i * dimensions));
+
+        int[] listStarts = new int[lists + 1];
+        for (int list : listOf)
+            listStarts[list + 1]++;
+        for (int c = 0; c < lists; c++)
+            listStarts[c + 1] += listStarts[c];
+
+        int[] next = listStarts.clone();
+        int[] members = new int[count];
+        for (int i = 0; i < count; i++)
+            members[next[listOf[i]]++] = i;
+
+        return new IvfIndex(grids, lists, probes, result, listStarts, members);
+    }
+
+    private static int nearestCentroid(float[] centroids, int lists, int dimensions,
+                                       int[] values, int offset) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+
+        for (int c = 0; c < lists; c++) {
+            float distance = 0;
+            for (int d = 0, o = c * dimensions; d < dimensions; d++) {
+                float diff = centroids[o + d] - values[offset + d];
+                distance += diff * diff;
+            }
+
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * @return the exact search of the same grids
+     */
+    GridDescriptors getGrids() {
+        return grids;
+    }
+
+    int getLists() {
+        return lists;
+    }
+
+    int getProbes() {
+        return probes;
+    }
+
+    /**
+     * Scans the lists of the nearest centers, so the answer may not
+     * be the most similar grid of all.
+     */
+    @Override
+    public int nearest(int[] grid) {
+        if (members.length == 0)
+            return -1;
+
+        // The nearest centers, sorted by their distance
+        int[] probed = new int[probes];
+        float[] probedDistances = new float[probes];
+        int found = 0;
+
+        int rowLength = 3 * gridSize;
+
+        for (int c = 0; c < lists; c++) {
+            // Gives up after a row of cells if it's too far already
+            float limit = found == probes ? probedDistances[probes - 1] : Float.MAX_VALUE;
+            float distance = 0;
+
+            for (int start = 0, o = c * dimensions; start < dimensions && distance < limit;
+                 start += rowLength) {
+                for (int d = start; d < start + rowLength; d++) {
+                    float diff = centroids[o + d] - grid[d];
+                    distance += diff * diff;
+                }
+            }
+
+            if (distance >= limit)
+                continue;
+
+            int i = found == probes ? probes - 1 : found++;
+            for (; i > 0 && probedDistances[i - 1] > distance; i--) {
+                probed[i] = probed[i - 1];
+                probedDistances[i] = probedDistances[i - 1];
+            }
+            probed[i] = c;
+            probedDistances[i] = distance;
+        }
+
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+
+        for (int p = 0; p < found; p++) {
+            int list = probed[p];
+
+            for (int i = listStarts[list]; i < listStarts[list + 1]; i++) {
+                int distance = GridDescriptors.distance(listValues, i * dimensions,
+                        grid, rowLength, bestDistance);
+
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+        }
+
+        return best < 0 ? -1 : members[best];
+    }
+
+    /**
+     * Makes goal grids to measure the recall with: grids of random
+     * images of the library, with some noise.
+     *
+     * @param grids  of the library
+     * @param number of grids
+     * @param seed   ..
+     * @return the grids
+     */
+    static int[][] sampleQueries(GridDescriptors grids, int number, long seed) {
+        Random random = new Random(seed);
+        int dimensions = grids.dimensions();
+        int[] values = grids.values();
+        int[][] queries = new int[grids.size() == 0 ? 0 : number][dimensions];
+
+        for (int[] query : queries) {
+            int offset = random.nextInt(grids.size()) * dimensions;
+            for (int d = 0; d < dimensions; d++)
+                query[d] = Math.max(0, Math.min(255,
+                        values[offset + d] + random.nextInt(49) - 24));
+        }
+        return queries;
+    }
+
+    /**
+     * The share of queries whose answer is as near as the exact one.
+     *
+     * @param exact   search of the same grids
+     * @param queries goal grids
+     * @return from 0 to 1
+     */
+    double recall(GridDescriptors exact, int[][] queries) {
+        if (queries.length == 0)
+            return 1;
+
+        int rowLength = 3 * gridSize;
+        int[] values = exact.values();
+        int hits = 0;
+
+        for (int[] query : queries) {
+            int expected = exact.nearest(query);
+            int actual = nearest(query);
+
+            if (GridDescriptors.distance(values, actual * dimensions, query,
+                    rowLength, Integer.MAX_VALUE) ==
+                    GridDescriptors.distance(values, expected * dimensions, query,
+                            rowLength, Integer.MAX_VALUE))
+                hits++;
+        }
+        return (double) hits / queries.length;
+    }
+}
@@ -0,0 +1,592 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * An image directory which is ready to make mosaic images: its index
+ * is built or read, the ImageFinder and the atlases are loaded and
+ * the reduced tiles are kept in a TileCache.
+ * All of them are only read once they are loaded, so a Library can
+ * be shared by several MosaicImage objects at the same time, and
+ * they share its cache too.
+ */
+class Library {
+    private final static int initialCapacity = 70000;
+
+    // How long a stopped process waits for indexing to write the
+    // images it has processed into a last segment.
+    private final static int checkpointOnExitSeconds = 10;
+
+    // Whether copies of the same photo are collapsed when we index
+    private final static boolean deduplicate = true;
+
+    // Memory budget of reduced tiles, in bytes
+    private final static long tileCacheBudget = 256L << 20;
+
+    // Lists of the IvfIndex, 0 means the square root of the number
+    // of images, and grids used to measure its recall.
+    private final static int ivfLists = 0;
+    private final static int ivfRecallQueries = 1000;
+
+    private final String directoryPath;
+    private final int[][] tileSizes;
+    private final int gridSize;
+    private final int ivfProbes;
+    private final int lookupBits;
+    private final RunReport report;
+    private final TileStore tiles;
+    private final ImageFinder imageFinder;
+    private final ThumbnailAtlas[] atlases;
+    private final TileCache tileCache = new TileCache(tileCacheBudget);
+
+    private Library(String directoryPath, int[][] tileSizes, int gridSize, int ivfProbes,
+                    int lookupBits, RunReport report, TileStore tiles) throws IOException {
+        this.directoryPath = directoryPath;
+        this.tileSizes = tileSizes;
+        this.gridSize = gridSize;
+        this.ivfProbes = ivfProbes;
+        this.lookupBits = lookupBits;
+        this.report = report;
+        this.tiles = tiles;
+
+        File index = new File(directoryPath + "/" + FileGenerator.INDEX_NAME);
+
+        imageFinder = report.time("build finder", () -> {
+            ImageFinder finder = new ImageFinder(tiles);
+
+            if (lookupBits > 0)
+                finder.useLookupTable(ColorLookupTable.open(
+                        new File(directoryPath + "/" + ColorLookupTable.fileName(lookupBits)),
+                        lookupBits, index, finder));
+            return finder;
+        });
+        report.add("images.indexed", tiles.size());
+        report.add("tiles.storeBytes", tiles.memorySize());
+
+        atlases = openAtlases(directoryPath, tileSizes, tiles.size());
+
+        if (gridSize > 0) {
+            // The grids are in the atlas of the grid size
+            ThumbnailAtlas grids = atlases[indexOf(tileSizes, gridSize, gridSize)];
+
+            if (grids != null)
+                imageFinder.useGridIndex(gridIndex(new GridDescriptors(grids), index));
+            else
+                System.out.println("There are no " + gridSize + "x" + gridSize +
+                        " grids yet, index the directory again to use them.");
+        }
+    }
+
+    /**
+     * The exact search of the grids, or an IvfIndex if we want
+     * one, then its recall is measured against the exact one.
+     */
+    private GridIndex gridIndex(GridDescriptors grids, File index) throws IOException {
+        if (ivfProbes <= 0)
+            return grids;
+
+        IvfIndex ivf = report.time("build ivf", () ->
+                IvfIndex.open(new File(directoryPath + "/" + IvfIndex.fileName(gridSize)),
+                        grids, index, ivfLists, ivfProbes));
+
+        // The same queries until the index changes
+        int[][] queries = IvfIndex.sampleQueries(grids, ivfRecallQueries,
+                index.lastModified() ^ index.length());
+        double recall = ivf.recall(grids, queries);
+
+        long start = System.nanoTime();
+        for (int[] query : queries)
+            grids.nearest(query);
+        double exactMicros = (System.nanoTime() - start) / 1e3 / Math.max(1, queries.length);
+
+        start = System.nanoTime();
+        for (int[] query : queries)
+            ivf.nearest(query);
+        double ivfMicros = (System.nanoTime() - start) / 1e3 / Math.max(1, queries.length);
+
+        report.rate("ivf.recall", recall);
+        report.rate("ivf.exactMicros", exactMicros);
+        report.rate("ivf.approximateMicros", ivfMicros);
+        System.out.printf("IVF: %d lists, %d probes, recall %.3f, %.1fus a search, %.1fus exact%n",
+                ivf.getLists(), ivf.getProbes(), recall, ivfMicros, exactMicros);
+
+        return ivf;
+    }
+
+    /**
+     * Indexes the directory if we haven't done it yet, or reads its
+     * index, then loads everything we need to make mosaic images.
+     *
+     * @param directoryPath the image directory
+     * @param tileSizes     is the width and height of every tile size
+     *                      kept in the atlases when we index.
+     * @param gridSize      is the size of the grids of colors we
+     *                      search, or 0 to search average colors.
+     * @param ivfProbes     is the number of lists an IvfIndex of the
+     *                      grids scans, or 0 for the exact search.
+     * @param lookupBits    is the bits per channel of a
+     *                      ColorLookupTable of the average colors, or
+     *                      0 to search every mosaic square exactly.
+     * @param refresh       whether the index is updated with the
+     *                      changes of the directory.
+     * @param report        ..
+     * @return Library object
+     * @throws IOException ..
+     */
+    static Library open(String directoryPath, int[][] tileSizes, int gridSize,
+                        int ivfProbes, int lookupBits, boolean refresh,
+                        RunReport report) throws IOException {
+        tileSizes = withGrid(tileSizes, gridSize);
+
+        // Shards indexed by other processes go into the index first
+        List<IndexShard> shards = IndexShard.listComplete(directoryPath);
+        if (!shards.isEmpty())
+            mergeShards(directoryPath, shards, tileSizes, report);
+
+        ImageInitializer pi;
+        TileStore tiles;
+        File index = MakeMyBeautifulMosaicImageAtFirstTime(directoryPath);
+
+        File segments = new File(directoryPath + "/" + IndexSegment.DIRECTORY);
+
+        if (index == null) {
+            // Images are decoded while the directory is still walked,
+            // an interrupted run goes on from its segments.
+            pi = new ImageInitializer(directoryPath, initialCapacity);
+            processImages(segments, pi::scanImageDirectory, tileSizes, report);
+            report.add("files.ignored", pi.getScanner().getIgnored());
+
+            tiles = generateIndex(directoryPath, Collections.singletonList(segments),
+                    ArrayList::new,
+                    tileSizes, report);
+        } else {
+            pi = new ImageInitializer(index, initialCapacity);
+
+            report.time("read index", () -> {
+                if (index.getName().equals("metadata.txt")) {
+                    // Migrates the old text file into index.bin, in the same
+                    // order, so an old atlas still matches it.
+                    pi.readMetaData();
+
+                    FileGenerator fg = new FileGenerator(directoryPath + "/", pi.tiles);
+                    fg.generateFile();
+                    pi.tiles = pi.tiles.found();
+                } else {
+                    pi.readIndex();
+                }
+            });
+            tiles = pi.tiles;
+
+            if (refresh) {
+                ThumbnailAtlas[] atlases = openAtlases(directoryPath, tileSizes,
+                        pi.tiles.size());
+
+                // Segments older than the index are in it already
+                IndexSegment.deleteOlderThan(segments, index.lastModified());
+
+                // Only new and changed images are processed
+                ArrayList<Image> changed = report.time("scan",
+                        () -> pi.refresh(directoryPath));
+
+                report.add("files.ignored", pi.getScanner().getIgnored());
+
+                processImages(segments, changed::forEach, tileSizes, report);
+
+                tiles = generateIndex(directoryPath, Collections.singletonList(segments),
+                        () -> Arrays.asList(pi.keptImages(atlases), pi.keptFailed()),
+                        tileSizes, report);
+            }
+        }
+
+        tiles.trim();
+        return new Library(directoryPath, tileSizes, gridSize, ivfProbes,
+                lookupBits, report, tiles);
+    }
+
+    /**
+     * Opens the same directory again, with the same settings.
+     *
+     * @param refresh whether the index is updated with the
+     *                changes of the directory.
+     * @return a new Library object, this one can still be used.
+     * @throws IOException ..
+     */
+    Library reload(boolean refresh) throws IOException {
+        return open(directoryPath, tileSizes, gridSize, ivfProbes, lookupBits,
+                refresh, report);
+    }
+
+    /**
+     * Indexes a shard of the directory, in this process, into the
+     * segments of the shard, they are merged by the next open(). A
+     * shard which is complete already is indexed again from scratch,
+     * an interrupted one goes on from its segments.
+     *
+     * @param directoryPath the image directory
+     * @param tileSizes     see open(), every shard must have the same.
+     * @param gridSize      see open()
+     * @param shard         ..
+     * @param report        ..
+     * @throws IOException ..
+     */
+    static void indexShard(String directoryPath, int[][] tileSizes, int gridSize,
+                           IndexShard shard, RunReport report) throws IOException {
+        tileSizes = withGrid(tileSizes, gridSize);
+        File segments = shard.directory(directoryPath);
+
+        if (shard.isComplete(directoryPath))
+            IndexSegment.delete(segments);
+
+        // Every shard lists the whole tree, but only opens the
+        // files of its own directories.
+        Path root = Paths.get(directoryPath);
+        ImageInitializer pi = new ImageInitializer(directoryPath, initialCapacity);
+        pi.getScanner().setDirectoryFilter(directory -> shard.contains(root, directory));
+        processImages(segments, pi::scanImageDirectory, tileSizes, report);
+
+        // A single segment, so a merge of many shards doesn't
+        // open too many files.
+        IndexSegment.compact(segments, tileSizes, 1);
+        shard.markComplete(directoryPath, tileSizes);
+    }
+
+    /**
+     * Merges complete shards into the index, with the images of the
+     * index which belong to other shards, then their segments are
+     * deleted. A shard which doesn't have all of our tile sizes, like
+     * one indexed before a --grid or for other batch jobs, is indexed
+     * again by this process first, otherwise it would never be merged.
+     *
+     * @param directoryPath ..
+     * @param shards        complete shards of the same count
+     * @param tileSizes     ..
+     * @param report        ..
+     * @throws IOException ..
+     */
+    private static void mergeShards(String directoryPath, List<IndexShard> shards,
+                                    int[][] tileSizes, RunReport report) throws IOException {
+        int count = shards.get(0).count;
+        boolean[] merged = new boolean[count];
+        List<File> directories = new ArrayList<>();
+        for (IndexShard shard : shards) {
+            if (!shard.hasTileSizes(directoryPath, tileSizes)) {
+                System.out.println("Shard " + shard + " was indexed with other tile sizes, " +
+                        "it's indexed again.");
+                indexShard(directoryPath, tileSizes, 0, shard, report);
+                report.count("shards.reindexed");
+            }
+
+            merged[shard.number] = true;
+            directories.add(shard.directory(directoryPath));
+        }
+
+        File index = new File(directoryPath + "/" + FileGenerator.INDEX_NAME);
+        Supplier<List<IndexMerger.Run>> kept = ArrayList::new;
+
+        if (index.isFile()) {
+            ImageInitializer pi = new ImageInitializer(index, initialCapacity);
+            report.time("read index", pi::readIndex);
+
+            ThumbnailAtlas[] atlases = openAtlases(directoryPath, tileSizes, pi.tiles.size());
+            Path root = Paths.get(directoryPath);
+            pi.keep(path -> !merged[IndexShard.of(root, path, count)]);
+            kept = () -> Arrays.asList(pi.keptImages(atlases), pi.keptFailed());
+        } else if (shards.size() < count) {
+            System.out.println("Only " + shards.size() + " of " + count + " shards are " +
+                    "indexed, the images of the others are missing until they are.");
+        }
+
+        generateIndex(directoryPath, directories, kept, tileSizes, report);
+
+        // Unless other shards are still running
+        new File(directoryPath + "/" + IndexShard.DIRECTORY).delete();
+        report.add("shards.merged", shards.size());
+        System.out.println("Shards " + shards + " are merged into the index.");
+    }
+
+    // The grids are kept like a tile size
+    private static int[][] withGrid(int[][] tileSizes, int gridSize) {
+        if (gridSize > 0 && indexOf(tileSizes, gridSize, gridSize) < 0) {
+            tileSizes = Arrays.copyOf(tileSizes, tileSizes.length + 1);
+            tileSizes[tileSizes.length - 1] = new int[]{gridSize, gridSize};
+        }
+        return tileSizes;
+    }
+
+    private static int indexOf(int[][] tileSizes, int width, int height) {
+        for (int i = 0; i < tileSizes.length; i++) {
+            if (tileSizes[i][0] == width && tileSizes[i][1] == height)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Looks for the index of the directory, or the old
+     * metadata.txt if there is no index yet.
+     *
+     * @param directoryPath ..
+     * @return the file, or null if we haven't indexed the directory.
+     */
+    private static File
+    MakeMyBeautifulMosaicImageAtFirstTime(String directoryPath) {
+        File index = new File(directoryPath + "/" + FileGenerator.INDEX_NAME);
+        File metaData = new File(directoryPath + "/metadata.txt");
+
+        if (index.isFile())
+            return index;
+
+        if (metaData.isFile())
+            return metaData;
+
+        return null;
+    }
+
+    /**
+     * Opens every image to calculate its colors and tiles, they are
+     * written into the segments. Images which are in the segments
+     * already, from an interrupted run, are skipped. If the process
+     * is stopped, like by Ctrl-C, indexing is cancelled and what is
+     * processed so far is written before it exits.
+     *
+     * @param segments  directory of the segments
+     * @param images    gives Image objects with paths
+     * @param tileSizes ..
+     * @param report    ..
+     * @throws IOException ..
+     */
+    private static void processImages(File segments, IndexingPipeline.Source images,
+                                      int[][] tileSizes,
+                                      RunReport report) throws IOException {
+        Set<String> done = IndexSegment.readPaths(segments, tileSizes);
+        if (!done.isEmpty()) {
+            System.out.println("Resuming, " + done.size() + " images are indexed already.");
+            report.add("images.resumed", done.size());
+        }
+
+        IndexingPipeline pipeline = new IndexingPipeline(segments, tileSizes);
+
+        pipeline.setListener(new IndexingPipeline.Listener() {
+            @Override
+            public void progress(int done, int total) {
+                report.progress("indexing", done, total);
+            }
+
+            @Override
+            public void failed(Image image, Exception exception) {
+                report.count("images.failed");
+                System.out.println("This photo should be deleted: " + image.path);
+                System.err.println("I/O Error: " + exception.getMessage());
+            }
+        });
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread checkpoint = new Thread(() -> {
+            pipeline.cancel();
+            try {
+                stopped.await(checkpointOnExitSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Exits anyway
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(checkpoint);
+
+        try (RunReport.Phase phase = report.phase("decode")) {
+            int processed = pipeline.run(consumer -> images.scan(image -> {
+                if (!done.contains(image.path))
+                    consumer.accept(image);
+            }));
+
+            report.add("bytes.read", pipeline.getBytesRead());
+            report.add("images.processed", processed);
+
+            if (phase.seconds() > 0)
+                report.rate("images.perSecond", processed / phase.seconds());
+        } finally {
+            stopped.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(checkpoint);
+            } catch (IllegalStateException e) {
+                // We are exiting already
+            }
+        }
+    }
+
+    /**
+     * Merges the segments with the images we keep into index.bin and
+     * the atlases, then the segments are deleted. Copies of the same
+     * photo are found first, by a merge of the same runs, and written
+     * into the report of duplicates.
+     *
+     * @param directoryPath ..
+     * @param segments      directories of the segments
+     * @param kept          makes sorted runs of images we keep, it's
+     *                      called for every merge.
+     * @param tileSizes     ..
+     * @param report        ..
+     * @return the images which can be opened, in the order of the index.
+     * @throws IOException ..
+     */
+    private static TileStore generateIndex(String directoryPath, List<File> segments,
+                                           Supplier<List<IndexMerger.Run>> kept,
+                                           int[][] tileSizes,
+                                           RunReport report) throws IOException {
+        File[] atlasFiles = new File[tileSizes.length];
+        for (int i = 0; i < tileSizes.length; i++)
+            atlasFiles[i] = atlasFile(directoryPath, tileSizes[i]);
+
+        for (File directory : segments)
+            IndexSegment.compact(directory, tileSizes);
+
+        Deduplicator duplicates = !deduplicate ? null : report.time("deduplicate", () -> {
+            Deduplicator deduplicator = new Deduplicator();
+
+            List<IndexMerger.Run> runs = runs(segments, kept, tileSizes);
+            try {
+                IndexMerger.merge(runs, deduplicator::add);
+            } finally {
+                for (IndexMerger.Run run : runs)
+                    run.close();
+            }
+            deduplicator.decide();
+            return deduplicator;
+        });
+
+        // The atlases are moved in place before the index, an atlas
+        // of an index which was never written is not used.
+        long generation = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+        TileStore tiles = report.time("merge", () ->
+                IndexMerger.merge(runs(segments, kept, tileSizes), atlasFiles,
+                        tileSizes, initialCapacity, duplicates, generation));
+
+        File index = new File(directoryPath + "/" + FileGenerator.INDEX_NAME);
+
+        report.time("write index", () -> {
+            FileGenerator fg = new FileGenerator(directoryPath + "/", tiles, generation);
+            fg.generateFile();
+
+            Deduplicator.writeHashes(new File(directoryPath + "/" + Deduplicator.HASHES_NAME),
+                    tiles, index);
+        });
+
+        if (duplicates != null) {
+            File duplicatesReport = new File(directoryPath + "/" + Deduplicator.REPORT_NAME);
+            duplicates.writeReport(duplicatesReport, tiles);
+
+            report.add("images.duplicates", duplicates.getDuplicates());
+            report.add("images.exactDuplicates", duplicates.getExact());
+            if (duplicates.getDuplicates() > 0)
+                System.out.println(duplicates.getDuplicates() + " copies of other images are " +
+                        "not used, see " + duplicatesReport);
+        }
+
+        // They are in the index now
+        for (File directory : segments)
+            IndexSegment.delete(directory);
+
+        // Images which can't be opened are not in the index,
+        // so they must not be found either.
+        return tiles.found();
+    }
+
+    // The kept images and the segments, to be merged
+    private static List<IndexMerger.Run> runs(List<File> segments,
+                                              Supplier<List<IndexMerger.Run>> kept,
+                                              int[][] tileSizes) throws IOException {
+        List<IndexMerger.Run> runs = new ArrayList<>(kept.get());
+        try {
+            for (File directory : segments) {
+                for (File file : IndexSegment.list(directory))
+                    runs.add(new IndexSegment.Reader(file, tileSizes));
+            }
+        } catch (IOException e) {
+            for (IndexMerger.Run run : runs)
+                run.close();
+            throw e;
+        }
+        return runs;
+    }
+
+    private static ThumbnailAtlas[] openAtlases(String directoryPath, int[][] tileSizes,
+                                                int count) throws IOException {
+        ThumbnailAtlas[] atlases = new ThumbnailAtlas[tileSizes.length];
+        long generation = FileGenerator.readGeneration(
+                new File(directoryPath + "/" + FileGenerator.INDEX_NAME));
+
+        for (int i = 0; i < tileSizes.length; i++)
+            atlases[i] = ThumbnailAtlas.open(atlasFile(directoryPath, tileSizes[i]),
+                    tileSizes[i][0], tileSizes[i][1], count, generation);
+
+        return atlases;
+    }
+
+    private static File atlasFile(String directoryPath, int[] tileSize) {
+        return new File(directoryPath + "/" +
+                ThumbnailAtlas.fileName(tileSize[0], tileSize[1]));
+    }
+
+    /**
+     * Makes a MosaicImage object which uses this library, its tiles
+     * are read from the atlas of its size if we have one, otherwise
+     * from their image files, and they are cached in our TileCache.
+     * Our smallest tiles, like the grids, are its preview tiles.
+     *
+     * @param path         the goal image
+     * @param mosaicWidth  ..
+     * @param mosaicHeight ..
+     * @return MosaicImage object
+     */
+    MosaicImage newMosaicImage(String path, int mosaicWidth, int mosaicHeight) {
+        MosaicImage mosaicImage = new MosaicImage(imageFinder, tileCache, path,
+                mosaicWidth, mosaicHeight);
+
+        int atlas = indexOf(tileSizes, mosaicWidth, mosaicHeight);
+        if (atlas >= 0)
+            mosaicImage.useAtlas(atlases[atlas]);
+
+        // The smallest tiles we have make the quickest preview
+        ThumbnailAtlas preview = null;
+        for (ThumbnailAtlas candidate : atlases) {
+            if (candidate != null && candidate.getWidth() < mosaicWidth &&
+                    candidate.getHeight() < mosaicHeight &&
+                    (preview == null || candidate.getWidth() * candidate.getHeight() <
+                            preview.getWidth() * preview.getHeight()))
+                preview = candidate;
+        }
+        if (preview != null)
+            mosaicImage.usePreviewAtlas(preview);
+        mosaicImage.useReport(report);
+
+        return mosaicImage;
+    }
+
+    String getDirectoryPath() {
+        return directoryPath;
+    }
+
+    ImageFinder getImageFinder() {
+        return imageFinder;
+    }
+
+    TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * @return number of images we can find
+     */
+    int size() {
+        return tiles.size();
+    }
+}
@@ -0,0 +1,211 @@
+import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Walks an image directory with many threads: every directory is a
+ * task, and its subdirectories are new tasks which idle threads
+ * steal, so a big tree on a slow disk or a network mount is listed
+ * by many requests at the same time. A walk mostly waits for the
+ * file system, so it has more threads than processors.
+ * A file is an image if its first bytes say so, whatever its name:
+ * JPEG, PNG, and WebP if ImageIO has a reader for it. Every image is
+ * given to a consumer as soon as it's found, from any thread.
+ * Symbolic links to directories are not followed, so a link to a
+ * parent can't make the walk endless.
+ */
+class LibraryScanner {
+    private static final int MAGIC_LENGTH = 12;
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final boolean WEBP = ImageIO.getImageReadersByFormatName("webp").hasNext();
+
+    private final int parallelism;
+    private final AtomicInteger found = new AtomicInteger();
+    private final AtomicInteger ignored = new AtomicInteger();
+    private Predicate<Path> directoryFilter;
+
+    /**
+     * Uses four threads for every available processor.
+     */
+    LibraryScanner() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism is the number of threads to use.
+     */
+    LibraryScanner(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param filter tells by its absolute path whether the images of a
+     *               directory are wanted. The files of other directories
+     *               are not even opened, their subdirectories are still
+     *               walked.
+     */
+    void setDirectoryFilter(Predicate<Path> filter) {
+        this.directoryFilter = filter;
+    }
+
+    /**
+     * Walks the directory and its subdirectories, directories which
+     * can't be read are reported and skipped.
+     *
+     * @param directory ..
+     * @param consumer  gets an Image object with the path, length and
+     *                  last modified time of every image.
+     * @throws IOException if the directory itself is not one.
+     */
+    void scan(Path directory, Consumer<Image> consumer) throws IOException {
+        if (!Files.isDirectory(directory))
+            throw new IOException("Not a directory: " + directory);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(directory.toAbsolutePath(), consumer));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return number of images found so far
+     */
+    int getFound() {
+        return found.get();
+    }
+
+    /**
+     * @return number of files which are not images, or can't be read
+     */
+    int getIgnored() {
+        return ignored.get();
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final Consumer<Image> consumer;
+
+        DirectoryTask(Path directory, Consumer<Image> consumer) {
+            this.directory = directory;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            boolean wanted = directoryFilter == null || directoryFilter.test(directory);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    BasicFileAttributes attributes = attributes(path);
+
+                    if (attributes != null && attributes.isDirectory()) {
+                        // Other threads can start on it right away
+                        DirectoryTask task = new DirectoryTask(path, consumer);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (!wanted) {
+                        // Somebody else looks at them
+                    } else if (attributes == null) {
+                        ignored.incrementAndGet();
+                    } else if (attributes.isRegularFile() && isImage(path)) {
+                        Image image = new Image(path.toString());
+                        image.length = attributes.size();
+                        image.lastModified = attributes.lastModifiedTime().toMillis();
+
+                        found.incrementAndGet();
+                        consumer.accept(image);
+                    } else {
+                        ignored.incrementAndGet();
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                System.err.println("Can't read the directory " + directory + ": " + e.getMessage());
+            }
+
+            for (DirectoryTask task : subdirectories)
+                task.join();
+        }
+    }
+
+    /**
+     * Attributes of a file, or of the file a link points to, but a
+     * link to a directory is treated like any other file.
+     *
+     * @return the attributes, or null for a broken link.
+     */
+    private static BasicFileAttributes attributes(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isSymbolicLink())
+                return attributes;
+
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isDirectory() ? null : attributes;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Reads the first bytes of a file to tell what it is
+    private static boolean isImage(Path path) {
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC_LENGTH);
+
+        try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // Reads until we have the magic or the file ends
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        return isImage(magic.array(), magic.position());
+    }
+
+    /**
+     * @param magic  first bytes of a file
+     * @param length number of bytes we have
+     * @return whether they start an image we can read
+     */
+    static boolean isImage(byte[] magic, int length) {
+        // JPEG starts with a SOI marker and the next marker
+        if (length >= 3 && (magic[0] & 0xFF) == 0xFF &&
+                (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF)
+            return true;
+
+        if (length >= PNG.length && startsWith(magic, 0, PNG))
+            return true;
+
+        // WebP is a RIFF file, "RIFF", its size, then "WEBP"
+        return WEBP && length >= 12 &&
+                startsWith(magic, 0, new byte[]{'R', 'I', 'F', 'F'}) &&
+                startsWith(magic, 8, new byte[]{'W', 'E', 'B', 'P'});
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -1,8 +1,16 @@
+import javax.imageio.ImageIO;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import static java.util.Collections.sort;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Yuguo Xie
@@ -10,64 +18,423 @@ import static java.util.Collections.sort;
  */
 class Main {
     public static Class<?> clazz;
-    private final static int initialCapacity = 70000;
-    private final static int threadsNumber = 10;
-    private final static int radius = 200;
-
-    private static File
-    MakeMyBeautifulMosaicImageAtFirstTime(String directoryPath) {
-        File[] files = new File(directoryPath).listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.getAbsolutePath().equals(
-                        directoryPath + "/metadata.txt"))
-                    return file;
+
+    // Threads which make the mosaic image
+    private final static int renderThreads =
+            Runtime.getRuntime().availableProcessors();
+
+    // Rows of mosaic squares in a strip, with --strips and --deep-zoom
+    private final static int stripRows = 16;
+
+    private final static int mosaicWidth = 20;
+    private final static int mosaicHeight = 20;
+
+    // Tile sizes kept in the atlas files while indexing
+    private final static int[][] tileSizes = {{mosaicWidth, mosaicHeight}};
+
+    // Renders running and waiting at the same time, with --serve
+    private final static int serviceConcurrency = 2;
+    private final static int serviceQueueSize = 16;
+
+    // Seconds a stopped service waits for the renders which have
+    // started, and then for the report to be written.
+    private final static int serviceStopSeconds = 10;
+
+    // Seconds between progress lines, with --progress
+    private final static int progressPeriod = 5;
+
+    // Where the time of a run goes, written into report.json
+    private final static RunReport report = new RunReport();
+
+    private static void init(String directoryPath, String image, int gridSize,
+                             int ivfProbes, int lookupBits, boolean refresh, boolean strips,
+                             boolean progressive, boolean deepZoom,
+                             int maxUses, int repeatDistance) throws IOException {
+        Library library = Library.open(directoryPath, tileSizes, gridSize,
+                ivfProbes, lookupBits, refresh, report);
+
+        MosaicImage mosaicImage = library.newMosaicImage(image,
+                mosaicWidth, mosaicHeight);
+        mosaicImage.setThreadsNumber(renderThreads);
+        mosaicImage.setUsageLimits(maxUses, repeatDistance);
+
+        report.time("render", () -> {
+            if (deepZoom)
+                mosaicImage.makeDeepZoom(new File("MosaicImage.dzi"), stripRows);
+            else if (strips)
+                mosaicImage.makeMosaicImageInStrips(new File("MosaicImage.bmp"), stripRows);
+            else if (progressive)
+                makeProgressively(mosaicImage, new File("MosaicImage.bmp"));
+            else
+                mosaicImage.makeMosaicImage();
+        });
+
+        reportTileCache(library.getTileCache());
+    }
+
+    /**
+     * Writes the mosaic image again after every pass, aside and then
+     * moved in place, so a viewer never opens half a file.
+     *
+     * @param mosaicImage ..
+     * @param output      a BMP file
+     * @throws IOException ..
+     */
+    private static void makeProgressively(MosaicImage mosaicImage,
+                                          File output) throws IOException {
+        File tmp = new File(output.getPath() + ".tmp");
+        long start = System.nanoTime();
+
+        mosaicImage.renderProgressively((pass, passes, image) -> {
+            ImageIO.write(image, "BMP", tmp);
+            Files.move(tmp.toPath(), output.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            report.rate("render.pass" + (pass + 1) + "Seconds", seconds);
+            System.out.printf("Pass %d of %d written after %.2fs%n", pass + 1, passes, seconds);
+        });
+    }
+
+    /**
+     * Makes the mosaic image of every job of a manifest, the index is
+     * loaded once and its tiles are cached for all of them.
+     *
+     * @param directoryPath  ..
+     * @param manifest       see BatchRenderer.readManifest()
+     * @param gridSize       see Library.open()
+     * @param ivfProbes      see Library.open()
+     * @param lookupBits     see Library.open()
+     * @param refresh        ..
+     * @param maxUses        see MosaicImage.setUsageLimits()
+     * @param repeatDistance see MosaicImage.setUsageLimits()
+     * @return number of failed jobs
+     * @throws IOException ..
+     */
+    private static int batch(String directoryPath, File manifest, int gridSize,
+                             int ivfProbes, int lookupBits, boolean refresh,
+                             int maxUses, int repeatDistance) throws IOException {
+        List<BatchRenderer.Job> jobs = BatchRenderer.readManifest(manifest,
+                mosaicWidth, mosaicHeight);
+
+        // Atlases of every tile size of the jobs are written
+        // if we index the directory now.
+        Library library = Library.open(directoryPath,
+                BatchRenderer.tileSizes(tileSizes, jobs), gridSize, ivfProbes,
+                lookupBits, refresh, report);
+
+        // Every job gets its share of the processors
+        int jobsNumber = Math.max(1, Math.min(renderThreads, jobs.size()));
+        BatchRenderer renderer = new BatchRenderer(library, jobsNumber,
+                Math.max(1, renderThreads / jobsNumber));
+        renderer.setUsageLimits(maxUses, repeatDistance);
+
+        int failed = report.time("batch", () -> renderer.render(jobs));
+        report.add("jobs.done", jobs.size() - failed);
+        report.add("jobs.failed", failed);
+
+        reportTileCache(library.getTileCache());
+        return failed;
+    }
+
+    /**
+     * Loads the library and serves mosaic images over HTTP until
+     * the process is stopped, see RenderService. Then the renders
+     * which have started are finished, and this returns so the
+     * report is written with the counters of the service.
+     *
+     * @param directoryPath ..
+     * @param port          on the loopback address
+     * @param gridSize      see Library.open()
+     * @param ivfProbes     see Library.open()
+     * @param lookupBits    see Library.open()
+     * @param refresh       ..
+     * @throws IOException ..
+     */
+    private static void serve(String directoryPath, int port, int gridSize,
+                              int ivfProbes, int lookupBits,
+                              boolean refresh) throws IOException {
+        Library library = Library.open(directoryPath, tileSizes, gridSize,
+                ivfProbes, lookupBits, refresh, report);
+
+        RenderService service = new RenderService(library, mosaicWidth, mosaicHeight,
+                serviceConcurrency, serviceQueueSize, report);
+        port = service.start(port);
+
+        System.out.println("Serving " + library.size() + " images on http://localhost:" + port);
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.stop(serviceStopSeconds);
+            stopped.countDown();
+
+            // The process exits when the hooks are done
+            try {
+                main.join(serviceStopSeconds * 1000L);
+            } catch (InterruptedException e) {
+                // Exits anyway
             }
+        }));
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        return null;
     }
 
-    private static void init(String directoryPath, String image) throws IOException {
-        ImageInitializer pi;
-        File metaData = MakeMyBeautifulMosaicImageAtFirstTime(directoryPath);
+    /**
+     * Indexes the shards of the directory at the same time, every one
+     * by its own process of this program with --shard, and waits for
+     * them. Their segments are merged by the next Library.open().
+     *
+     * @param directoryPath ..
+     * @param count         of shards
+     * @param tileSizes     of the library we open next, so the
+     *                      shards can be merged into it.
+     * @param gridSize      see Library.open()
+     * @throws IOException if a shard fails.
+     */
+    private static void indexShards(String directoryPath, int count, int[][] tileSizes,
+                                    int gridSize) throws IOException {
+        List<Process> processes = new ArrayList<>();
 
-        if (metaData == null) {
-            pi = new ImageInitializer(directoryPath, initialCapacity);
-            pi.readImageDirectory();
+        for (int i = 0; i < count; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" +
+                    File.separator + "java");
+            command.addAll(workerOptions());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            command.add("--shard");
+            command.add(i + "/" + count);
+            command.add("--tiles");
+            command.add(formatTileSizes(tileSizes));
+            if (gridSize > 0) {
+                command.add("--grid");
+                command.add(String.valueOf(gridSize));
+            }
 
-            TaskPartition tp = new TaskPartition(threadsNumber, pi.images);
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            processes.add(process);
 
-            tp.partition();
+            // It asks for the directory like we do
+            try (OutputStream in = process.getOutputStream()) {
+                in.write((directoryPath + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int failed = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                if (processes.get(i).waitFor() != 0) {
+                    System.err.println("Shard " + i + "/" + count + " failed");
+                    failed++;
+                }
+            } catch (InterruptedException e) {
+                for (Process process : processes)
+                    process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("Indexing the shards is interrupted", e);
+            }
+        }
+
+        if (failed > 0)
+            throw new IOException(failed + " of " + count + " shards failed, " +
+                    "run them again with --shard, the others are merged by the next run");
+    }
 
-            sort(pi.images); // Sort all Image object
+    /**
+     * Options of this JVM which the workers get too, like the heap
+     * size. Agents and debuggers are left out, a second one couldn't
+     * listen on the same port.
+     *
+     * @return options
+     */
+    private static List<String> workerOptions() {
+        List<String> options = new ArrayList<>();
 
-            FileGenerator fg = new FileGenerator(directoryPath + "/", pi.images);
-            fg.generateFile();
-        } else {
-            pi = new ImageInitializer(metaData, initialCapacity);
-            pi.readMetaData();
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (option.startsWith("-Xm") || option.startsWith("-Xss") ||
+                    option.startsWith("-XX:") || option.startsWith("-D"))
+                options.add(option);
         }
+        return options;
+    }
+
+    /**
+     * @param tileSizes ..
+     * @return like "20x20,40x40", see parseTileSizes()
+     */
+    private static String formatTileSizes(int[][] tileSizes) {
+        StringBuilder text = new StringBuilder();
+        for (int[] size : tileSizes)
+            text.append(text.length() == 0 ? "" : ",").append(size[0]).append('x').append(size[1]);
+        return text.toString();
+    }
+
+    /**
+     * @param text like "20x20,40x40"
+     * @return tile sizes
+     */
+    private static int[][] parseTileSizes(String text) {
+        String[] sizes = text.split(",");
+        int[][] tileSizes = new int[sizes.length][];
+
+        for (int i = 0; i < sizes.length; i++) {
+            int x = sizes[i].indexOf('x');
+            if (x < 0)
+                throw new IllegalArgumentException("A tile size is <width>x<height>: " + sizes[i]);
+
+            tileSizes[i] = new int[]{Integer.parseInt(sizes[i].substring(0, x).trim()),
+                    Integer.parseInt(sizes[i].substring(x + 1).trim())};
+        }
+        return tileSizes;
+    }
 
-        ImageFinder pf = new ImageFinder(pi.images, radius);
-        MosaicImage mosaicImage = new MosaicImage(pf, image, 20, 20);
-        mosaicImage.makeMosaicImage();
+    private static void reportTileCache(TileCache tileCache) {
+        report.add("tiles.cacheHits", tileCache.hits());
+        report.add("tiles.cacheMisses", tileCache.misses());
+        report.add("tiles.cacheEvictions", tileCache.evictions());
+        System.out.println(tileCache);
     }
 
     public static void main(String[] args) throws IOException {
         clazz = int.class;
         String directoryPath;
-        String imagePath;
+        String imagePath = null;
         BufferedReader bufferedReader;
 
+        // With --refresh, the index is updated with the
+        // changes of the image directory, with --strips, the
+        // image is made a strip at a time, for huge images,
+        // with --progress, a line tells how far indexing is,
+        // with --batch <manifest>, every goal image of the
+        // manifest is made rather than one we ask for, with
+        // --serve <port>, mosaic images are made over HTTP, with
+        // --grid <n>, squares are matched by n x n grids of colors,
+        // with --ivf <probes>, the grids are searched approximately,
+        // with --lookup <bits>, average colors are looked up in a
+        // table of colors of that many bits per channel,
+        // with --max-uses <n>, an image is used at most n times, with
+        // --no-repeat <n>, an image is not used again within n squares,
+        // with --progressive, the image is written after every pass,
+        // with --deep-zoom, a pyramid of tiles is written, not a BMP,
+        // only one of --strips, --progressive and --deep-zoom can be given,
+        // with --shard <i>/<n>, only shard i of n is indexed, by this
+        // process, with --tiles <w>x<h>,..., with these tile sizes,
+        // with --shards <n>, n processes index the shards
+        // before the index is merged and used.
+        boolean refresh = false;
+        boolean strips = false;
+        boolean progressive = false;
+        boolean deepZoom = false;
+        boolean progress = false;
+        File manifest = null;
+        IndexShard shard = null;
+        int shards = 0;
+        int port = -1;
+        int gridSize = 0;
+        int ivfProbes = 0;
+        int lookupBits = 0;
+        int maxUses = 0;
+        int repeatDistance = 0;
+        int[][] shardTileSizes = tileSizes;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--refresh"))
+                refresh = true;
+            else if (args[i].equals("--strips"))
+                strips = true;
+            else if (args[i].equals("--progress"))
+                progress = true;
+            else if (args[i].equals("--progressive"))
+                progressive = true;
+            else if (args[i].equals("--deep-zoom"))
+                deepZoom = true;
+            else if (args[i].equals("--batch") && i + 1 < args.length)
+                manifest = new File(args[++i]);
+            else if (args[i].equals("--shard") && i + 1 < args.length)
+                shard = IndexShard.parse(args[++i]);
+            else if (args[i].equals("--shards") && i + 1 < args.length)
+                shards = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--serve") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--grid") && i + 1 < args.length)
+                gridSize = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--ivf") && i + 1 < args.length)
+                ivfProbes = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--lookup") && i + 1 < args.length)
+                lookupBits = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--max-uses") && i + 1 < args.length)
+                maxUses = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--no-repeat") && i + 1 < args.length)
+                repeatDistance = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--tiles") && i + 1 < args.length)
+                shardTileSizes = parseTileSizes(args[++i]);
+        }
+
+        // Each of them writes the mosaic image its own way
+        if ((strips ? 1 : 0) + (progressive ? 1 : 0) + (deepZoom ? 1 : 0) > 1) {
+            System.err.println("Only one of --strips, --progressive and --deep-zoom can be given");
+            System.exit(2);
+        }
+
         bufferedReader = new BufferedReader(new InputStreamReader(System.in));
 
         System.out.println("Choose a image directory: ");
         directoryPath = bufferedReader.readLine();
 
-        System.out.println("Choose a image to process: ");
-        imagePath = bufferedReader.readLine();
+        if (shard != null) {
+            // A worker of --shards, or of another machine
+            try {
+                Library.indexShard(directoryPath, shardTileSizes, gridSize, shard, report);
+            } finally {
+                report.write(new File("report-shard" + shard.number + "of" + shard.count + ".json"));
+            }
+            return;
+        }
+
+        if (manifest == null && port < 0) {
+            System.out.println("Choose a image to process: ");
+            imagePath = bufferedReader.readLine();
+        }
+
+        if (progress)
+            report.startProgressLine(progressPeriod);
+
+        int failed = 0;
+        try {
+            if (shards > 0) {
+                // The tile sizes of the batch jobs too, like batch() opens it
+                int[][] sizes = manifest == null ? tileSizes : BatchRenderer.tileSizes(tileSizes,
+                        BatchRenderer.readManifest(manifest, mosaicWidth, mosaicHeight));
+                String directory = directoryPath;
+                int count = shards;
+                int size = gridSize;
+                report.time("shards", () -> indexShards(directory, count, sizes, size));
+            }
+
+            if (manifest != null)
+                failed = batch(directoryPath, manifest, gridSize, ivfProbes, lookupBits,
+                        refresh, maxUses, repeatDistance);
+            else if (port >= 0)
+                serve(directoryPath, port, gridSize, ivfProbes, lookupBits, refresh);
+            else
+                init(directoryPath, imagePath, gridSize, ivfProbes, lookupBits, refresh,
+                        strips, progressive, deepZoom, maxUses, repeatDistance);
+        } finally {
+            report.stopProgressLine();
+            report.write(new File("report.json"));
+        }
 
-        init(directoryPath, imagePath);
+        if (failed > 0)
+            System.exit(1);
     }
 }
@@ -1,13 +1,38 @@
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This will be the pivotal class to create a mosaic image.
+ * Every row of mosaic squares can be made by another thread,
+ * since they are independent and each one writes its own
+ * part of the new image, the result is the same as making
+ * them one after another.
  */
 class MosaicImage {
     private ImageFinder imageFinder;
+    private TileCache tileCache;
+    private ThumbnailAtlas atlas;
+    private ThumbnailAtlas previewAtlas;
+    private SummedAreaTable summedAreaTable;
+    private RunReport report;
+    private int threadsNumber = 1;
+    private int maxUses;
+    private int repeatDistance;
     private String path;
     private final int mosaicWidth;
     private final int mosaicHeight;
@@ -30,182 +55,665 @@ class MosaicImage {
         this.size = mosaicWidth * mosaicHeight;
     }
 
+    /**
+     * Same as the first constructor, but reduced tiles are kept
+     * in a TileCache.
+     *
+     * @param imageFinder  ..
+     * @param tileCache    ..
+     * @param path         ..
+     * @param mosaicWidth  ..
+     * @param mosaicHeight ..
+     */
+    MosaicImage(ImageFinder imageFinder, TileCache tileCache, String path,
+                int mosaicWidth, int mosaicHeight) {
+        this(imageFinder, path, mosaicWidth, mosaicHeight);
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Lets tiles be read from a ThumbnailAtlas rather than
+     * their image files.
+     *
+     * @param atlas must have the same tile size as this object.
+     */
+    void useAtlas(ThumbnailAtlas atlas) {
+        this.atlas = atlas;
+    }
+
+    /**
+     * Lets renderProgressively() draw a pass of small tiles,
+     * enlarged, before the tiles of our size.
+     *
+     * @param previewAtlas of a smaller tile size than this object
+     */
+    void usePreviewAtlas(ThumbnailAtlas previewAtlas) {
+        this.previewAtlas = previewAtlas;
+    }
+
+    /**
+     * Is given the mosaic image after every pass of
+     * renderProgressively().
+     */
+    interface PassListener {
+        /**
+         * @param pass   0 for the first one
+         * @param passes number of passes
+         * @param image  the mosaic image so far, the next pass draws
+         *               on it, so it must be copied to be kept.
+         * @throws IOException ..
+         */
+        void pass(int pass, int passes, BufferedImage image) throws IOException;
+    }
+
+    /**
+     * Lets the averages of mosaic squares be read from the summed-area
+     * table of another MosaicImage object with the same goal image,
+     * so the goal image is not read again.
+     *
+     * @param summedAreaTable of the goal image
+     */
+    void useSummedAreaTable(SummedAreaTable summedAreaTable) {
+        this.summedAreaTable = summedAreaTable;
+    }
+
+    /**
+     * @return the summed-area table of the goal image, null
+     * until makeMosaicImage() is called.
+     */
+    SummedAreaTable getSummedAreaTable() {
+        return summedAreaTable;
+    }
+
+    /**
+     * Lets the time of every search and the tiles we read be
+     * recorded in a RunReport.
+     *
+     * @param report ..
+     */
+    void useReport(RunReport report) {
+        this.report = report;
+    }
+
+    /**
+     * @param threadsNumber is the number of threads which make rows
+     *                      of mosaic squares, 1 by default.
+     */
+    void setThreadsNumber(int threadsNumber) {
+        this.threadsNumber = threadsNumber;
+    }
+
+    /**
+     * Limits how often the same image is used, then every square is
+     * searched one after another before the rows are made, see
+     * TileAssigner.
+     *
+     * @param maxUses        times an image can be used, 0 for any
+     * @param repeatDistance squares an image must be away from itself,
+     *                       0 for any
+     */
+    void setUsageLimits(int maxUses, int repeatDistance) {
+        this.maxUses = maxUses;
+        this.repeatDistance = repeatDistance;
+    }
+
     // To make a beautiful shiny mosaic image
     void makeMosaicImage() throws IOException {
-        File file = new File(path);
-        BufferedImage imageBuffer = ImageIO.read(file);
+        makeMosaicImage(new File("MosaicImage.bmp"));
+    }
 
+    /**
+     * Same as makeMosaicImage(), but writes the mosaic image into
+     * the given file.
+     *
+     * @param output a BMP file
+     * @throws IOException ..
+     */
+    void makeMosaicImage(File output) throws IOException {
+        ImageIO.write(render(), "BMP", output);
+    }
+
+    /**
+     * Makes the mosaic image in memory, for callers which
+     * write it somewhere else than a file.
+     *
+     * @return the mosaic image, of type TYPE_INT_RGB
+     * @throws IOException ..
+     */
+    BufferedImage render() throws IOException {
+        readGoalImage();
 
-        int width = imageBuffer.getWidth();
-        int height = imageBuffer.getHeight();
+        int sizeX = summedAreaTable.getWidth() / mosaicWidth;
+        int sizeY = summedAreaTable.getHeight() / mosaicHeight;
+        BufferedImage newImage = newImage(sizeX, sizeY);
 
-        int sizeX = width / mosaicWidth;
-        int sizeY = height / mosaicHeight;
+        makeRows(summedAreaTable, newImage, sizeX, sizeY, 0, newAssigner(sizeX));
 
+        return newImage;
+    }
 
-        BufferedImage newImage = new BufferedImage(
+    /**
+     * Same as render(), but the mosaic image is drawn in passes which
+     * get better and better, so we see what it looks like long before
+     * it's finished. Every square is searched once, then the passes
+     * draw the image of every square as:
+     * <pre>
+     * 1. its average color
+     * 2. its tile from the preview atlas, enlarged, if we have one
+     * 3. its tile, as render() does
+     * </pre>
+     * Tiles read from image files take most of the time of a render,
+     * the first pass doesn't read any.
+     *
+     * @param listener is called after every pass
+     * @return the mosaic image, of type TYPE_INT_RGB
+     * @throws IOException ..
+     */
+    BufferedImage renderProgressively(PassListener listener) throws IOException {
+        readGoalImage();
+
+        int sizeX = summedAreaTable.getWidth() / mosaicWidth;
+        int sizeY = summedAreaTable.getHeight() / mosaicHeight;
+        BufferedImage newImage = newImage(sizeX, sizeY);
+
+        int[] assignments = assignSquares(summedAreaTable, sizeX, sizeY, 0,
+                newAssigner(sizeX));
+        int passes = previewAtlas == null ? 2 : 3;
+        int pass = 0;
+
+        drawColors(newImage, sizeX, sizeY, assignments);
+        listener.pass(pass++, passes, newImage);
+
+        if (previewAtlas != null) {
+            drawPreviews(newImage, sizeX, sizeY, assignments);
+            listener.pass(pass++, passes, newImage);
+        }
+
+        drawRows(summedAreaTable, newImage, sizeX, sizeY, assignments);
+        listener.pass(pass, passes, newImage);
+
+        return newImage;
+    }
+
+    // Reads the goal image into its summed-area table, unless we have it
+    private void readGoalImage() throws IOException {
+        if (summedAreaTable != null)
+            return;
+
+        File file = new File(path);
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("No reader for " + path);
+
+        summedAreaTable = new SummedAreaTable(image);
+
+        if (report != null)
+            report.add("bytes.read", file.length());
+    }
+
+    private BufferedImage newImage(int sizeX, int sizeY) {
+        return new BufferedImage(
                 sizeX * mosaicWidth,
                 sizeY * mosaicHeight,
                 BufferedImage.TYPE_INT_RGB);
+    }
 
-        for (int i = 0; i < sizeX; i++) {
-            for (int j = 0; j < sizeY; j++) {
+    // Every square gets the average color of its image
+    private void drawColors(BufferedImage newImage, int sizeX, int sizeY,
+                            int[] assignments) {
+        int[] tile = new int[size];
 
-                int red = 0;
-                int green = 0;
-                int blue = 0;
+        for (int j = 0, k = 0; j < sizeY; j++) {
+            for (int i = 0; i < sizeX; i++, k++) {
+                if (assignments[k] < 0)
+                    continue;
 
-                for (int m = i * mosaicWidth;
-                     m < (i + 1) * mosaicWidth; m++) {
-                    for (int n = j * mosaicHeight;
-                         n < (j + 1) * mosaicHeight; n++) {
+                Arrays.fill(tile, imageFinder.getColor(assignments[k]));
+                PixelKernel.blit(tile, mosaicWidth, mosaicHeight,
+                        newImage, i * mosaicWidth, j * mosaicHeight);
+            }
+        }
+    }
+
+    // Every square gets the small tile of its image, enlarged
+    private void drawPreviews(BufferedImage newImage, int sizeX, int sizeY,
+                              int[] assignments) {
+        int[] tile = new int[size];
+
+        for (int j = 0, k = 0; j < sizeY; j++) {
+            for (int i = 0; i < sizeX; i++, k++) {
+                if (assignments[k] < 0)
+                    continue;
+
+                PixelKernel.enlarge(previewAtlas.read(assignments[k]),
+                        previewAtlas.getWidth(), previewAtlas.getHeight(),
+                        tile, mosaicWidth, mosaicHeight);
+                PixelKernel.blit(tile, mosaicWidth, mosaicHeight,
+                        newImage, i * mosaicWidth, j * mosaicHeight);
+            }
+        }
+    }
+
+    /**
+     * Makes the mosaic image a strip at a time, for goal images which
+     * are too big to be read at once. Only a strip of the goal image
+     * is read, its mosaic squares are made, then the strip is written
+     * at the end of the BMP file, so the memory we need depends on the
+     * height of a strip rather than the size of the image.
+     * Notice that some readers, like the JPEG one, have to decode the
+     * image from its top again for every strip, so higher strips make
+     * fewer passes.
+     *
+     * @param output    a BMP file
+     * @param stripRows number of rows of mosaic squares in a strip
+     * @throws IOException ..
+     */
+    void makeMosaicImageInStrips(File output, int stripRows) throws IOException {
+        try (ImageInputStream input = openGoalImage()) {
+            ImageReader reader = readerOf(input);
+            try {
+                int sizeX = reader.getWidth(0) / mosaicWidth;
+                int sizeY = reader.getHeight(0) / mosaicHeight;
+
+                BufferedImage strip = new BufferedImage(
+                        sizeX * mosaicWidth,
+                        Math.max(1, Math.min(stripRows, sizeY) * mosaicHeight),
+                        BufferedImage.TYPE_INT_RGB);
 
-                        int rgb = imageBuffer.getRGB(m, n);
+                // One for all strips, so the limits hold across them
+                TileAssigner assigner = newAssigner(sizeX);
 
-                        red += ((rgb >> 16) & 0xFF);
-                        green += ((rgb >> 8) & 0xFF);
-                        blue += (rgb & 0xFF);
+                try (BmpWriter writer = new BmpWriter(output,
+                        sizeX * mosaicWidth, sizeY * mosaicHeight)) {
+
+                    for (int top = 0; top < sizeY; top += stripRows) {
+                        int rows = Math.min(stripRows, sizeY - top);
+
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        param.setSourceRegion(new Rectangle(0, top * mosaicHeight,
+                                sizeX * mosaicWidth, rows * mosaicHeight));
+
+                        SummedAreaTable table = new SummedAreaTable(reader.read(0, param));
+                        makeRows(table, strip, sizeX, rows, top, assigner);
+
+                        writer.writeRows(strip, rows * mosaicHeight);
                     }
                 }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
 
-                Image image = imageFinder.searchImage(new Image(
-                        red / size,
-                        green / size,
-                        blue / size));
+    /**
+     * Writes the mosaic image as a Deep Zoom pyramid, see
+     * DeepZoomWriter, for mosaic images which are too big to be
+     * looked at in a single file. The goal image is read a strip at
+     * a time to search its squares, then the tiles of the pyramid
+     * are drawn from the tiles of the squares, so neither the goal
+     * image nor the mosaic image is ever in memory.
+     *
+     * @param dzi       the descriptor file
+     * @param stripRows number of rows of mosaic squares in a strip
+     * @throws IOException ..
+     */
+    void makeDeepZoom(File dzi, int stripRows) throws IOException {
+        int sizeX;
+        int sizeY;
+        int[] assignments;
+
+        try (ImageInputStream input = openGoalImage()) {
+            ImageReader reader = readerOf(input);
+            try {
+                sizeX = reader.getWidth(0) / mosaicWidth;
+                sizeY = reader.getHeight(0) / mosaicHeight;
+                assignments = new int[sizeX * sizeY];
+
+                TileAssigner assigner = newAssigner(sizeX);
+
+                for (int top = 0; top < sizeY; top += stripRows) {
+                    int rows = Math.min(stripRows, sizeY - top);
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, top * mosaicHeight,
+                            sizeX * mosaicWidth, rows * mosaicHeight));
+
+                    int[] strip = assignSquares(new SummedAreaTable(reader.read(0, param)),
+                            sizeX, rows, top, assigner);
+                    System.arraycopy(strip, 0, assignments, top * sizeX, strip.length);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        if (sizeX == 0 || sizeY == 0)
+            throw new IOException("The goal image is smaller than a mosaic square: " + path);
 
-                int[][][] reducedImage = reduceImage(image);
+        DeepZoomWriter writer = new DeepZoomWriter(dzi,
+                sizeX * mosaicWidth, sizeY * mosaicHeight);
+        ThreadLocal<PixelKernel> pixelKernels = ThreadLocal.withInitial(PixelKernel::new);
 
-                writeNewImage(newImage, reducedImage, i, j);
+        int tiles = writer.write((x, y, width, height, pixels) ->
+                        drawRegion(assignments, sizeX, x, y, width, height,
+                                pixels, pixelKernels.get()),
+                Math.max(1, threadsNumber));
+
+        if (report != null)
+            report.add("deepZoom.tiles", tiles);
+    }
+
+    // Copies the parts of the tiles of the squares which are in a region
+    private void drawRegion(int[] assignments, int sizeX, int x, int y,
+                            int width, int height, int[] pixels,
+                            PixelKernel pixelKernel) throws IOException {
+        for (int j = y / mosaicHeight; j * mosaicHeight < y + height; j++) {
+            int top = Math.max(y, j * mosaicHeight);
+            int bottom = Math.min(y + height, (j + 1) * mosaicHeight);
+
+            for (int i = x / mosaicWidth; i * mosaicWidth < x + width; i++) {
+                int index = assignments[j * sizeX + i];
+                if (index < 0)
+                    continue;
+
+                int[] tile = reduceImage(index, pixelKernel);
+                int left = Math.max(x, i * mosaicWidth);
+                int right = Math.min(x + width, (i + 1) * mosaicWidth);
+
+                for (int v = top; v < bottom; v++)
+                    System.arraycopy(tile, (v - j * mosaicHeight) * mosaicWidth + left - i * mosaicWidth,
+                            pixels, (v - y) * width + left - x, right - left);
             }
         }
+    }
+
+    // The goal image as a stream, to be read a region at a time
+    private ImageInputStream openGoalImage() throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new File(path));
+        if (input == null)
+            throw new IOException("Can't open " + path);
 
-        ImageIO.write(newImage, "BMP", new File("MosaicImage.bmp"));
+        if (report != null)
+            report.add("bytes.read", new File(path).length());
+
+        return input;
+    }
+
+    private ImageReader readerOf(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext())
+            throw new IOException("No reader for " + path);
+
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    private TileAssigner newAssigner(int sizeX) {
+        if (maxUses <= 0 && repeatDistance <= 0)
+            return null;
+        return new TileAssigner(imageFinder, maxUses, repeatDistance, sizeX);
     }
 
     /**
-     * To reduce the size of a image to a new size
-     * of mosaicWidth * mosaicHeight
+     * Makes rows of mosaic squares, by several threads
+     * if we have more than one.
      *
-     * @param image ..
-     * @return a images' pixels values
+     * @param table    summed-area table of the goal image, or a strip of it
+     * @param newImage the mosaic image, or a strip of it
+     * @param sizeX    number of squares in a row
+     * @param sizeY    number of rows
+     * @param firstRow row of the whole image where the strip starts
+     * @param assigner decides the images if their use is limited,
+     *                 otherwise null
      * @throws IOException ..
      */
-    private int[][][] reduceImage(Image image) throws IOException {
-        int[][][] pixelArray = new int[mosaicWidth][mosaicHeight][3];
-        BufferedImage imageBuffer = ImageIO.read(new File(image.path));
-
-        if (imageBuffer == null)
-            return pixelArray;
-
-        int width = imageBuffer.getWidth();
-        int height = imageBuffer.getHeight();
-
-        int sizeX = width / mosaicWidth;
-        int restX = width % mosaicWidth;
-
-        int sizeY = height / mosaicHeight;
-        int restY = height % mosaicHeight;
-
-        for (int i = 0; i < mosaicWidth; i++) {
-            for (int j = 0; j < mosaicHeight; j++) {
-                if (i < restX && j < restY)
-
-                    // To divide the image as uniform as we can,
-                    // for example, if we want to divide 6 into 4 parts,
-                    // we let first 2 parts have one more than the rest
-                    // parts, we get 2, 2, 1, 1 as the result, maybe 
-                    // is unnecessary and a little bit over-designed,
-                    // but i like :)
-                    pixelArray[i][j] = getAveragePixel(imageBuffer,
-                            i * (sizeX + 1),
-                            (i + 1) * (sizeX + 1),
-                            j * (sizeY + 1),
-                            (j + 1) * (sizeY + 1));
-
-                if (i < restX && j >= restY)
-                    pixelArray[i][j] = getAveragePixel(imageBuffer,
-                            i * (sizeX + 1),
-                            (i + 1) * (sizeX + 1),
-                            j * sizeY + restY,
-                            (j + 1) * sizeY + restY);
-
-                if (i >= restX && j < restY)
-                    pixelArray[i][j] = getAveragePixel(imageBuffer,
-                            i * sizeX + restX,
-                            (i + 1) * sizeX + restX,
-                            j * (sizeY + 1),
-                            (j + 1) * (sizeY + 1));
-
-                if (i >= restX && j >= restY)
-                    pixelArray[i][j] = getAveragePixel(imageBuffer,
-                            i * sizeX + restX,
-                            (i + 1) * sizeX + restX,
-                            j * sizeY + restY,
-                            (j + 1) * sizeY + restY);
-            }
-        }
-        return pixelArray;
+    private void makeRows(SummedAreaTable table, BufferedImage newImage,
+                          int sizeX, int sizeY, int firstRow,
+                          TileAssigner assigner) throws IOException {
+        // Only the searches depend on each other, the tiles
+        // can still be made by several threads.
+        int[] assignments = assigner == null ? null
+                : assignSquares(table, sizeX, sizeY, firstRow, assigner);
+
+        drawRows(table, newImage, sizeX, sizeY, assignments);
     }
 
+    /**
+     * Draws the tiles of rows of mosaic squares, by several threads
+     * if we have more than one.
+     *
+     * @param assignments images of the squares, or null to search them
+     */
+    private void drawRows(SummedAreaTable table, BufferedImage newImage,
+                          int sizeX, int sizeY, int[] assignments) throws IOException {
+        if (threadsNumber > 1)
+            makeRowsInParallel(table, newImage, sizeX, sizeY, assignments);
+        else {
+            PixelKernel pixelKernel = new PixelKernel();
+
+            for (int j = 0; j < sizeY; j++)
+                makeRow(table, newImage, sizeX, j, assignments, pixelKernel);
+        }
+    }
 
     /**
-     * Calculates the average value of all pixels within
-     * a specific region
+     * Assigns images to all squares, one after another.
      *
-     * @param imageBuffer ..
-     * @param startX      ..
-     * @param endX        ..
-     * @param startY      ..
-     * @param endY        ..
-     * @return average value array
+     * @param assigner decides the images if their use is limited,
+     *                 otherwise null, then every square gets the
+     *                 image it's the most similar to.
+     * @return list index of the image of every square, row by row
      */
-    private int[] getAveragePixel(BufferedImage imageBuffer,
-                                  int startX, int endX,
-                                  int startY, int endY) {
-        int red = 0;
-        int green = 0;
-        int blue = 0;
-        int mosaicSize = (endX - startX) * (endY - startY);
+    private int[] assignSquares(SummedAreaTable table, int sizeX, int sizeY,
+                                int firstRow, TileAssigner assigner) {
+        int gridSize = imageFinder.getGridSize();
+        int[] descriptor = new int[gridSize > 0 ? 3 * gridSize * gridSize : 3];
+        int[] columnEnds = new int[gridSize + 1];
+        int[] rowEnds = new int[gridSize + 1];
+        int[] assignments = new int[sizeX * sizeY];
+
+        if (gridSize > 0) {
+            PixelKernel.divide(columnEnds, mosaicWidth, gridSize);
+            PixelKernel.divide(rowEnds, mosaicHeight, gridSize);
+        }
 
-        for (int i = startX; i < endX; i++) {
-            for (int j = startY; j < endY; j++) {
-                int pixel = imageBuffer.getRGB(i, j);
+        for (int j = 0, k = 0; j < sizeY; j++) {
+            for (int i = 0; i < sizeX; i++, k++) {
+                if (gridSize > 0) {
+                    fillGrid(table, i, j, columnEnds, rowEnds, gridSize, descriptor);
+                } else {
+                    int rgb = table.average(
+                            i * mosaicWidth, j * mosaicHeight,
+                            (i + 1) * mosaicWidth, (j + 1) * mosaicHeight);
+
+                    descriptor[0] = (rgb >> 16) & 0xFF;
+                    descriptor[1] = (rgb >> 8) & 0xFF;
+                    descriptor[2] = rgb & 0xFF;
+                }
+
+                long start = report == null ? 0 : System.nanoTime();
+
+                if (assigner != null)
+                    assignments[k] = assigner.assign(i, firstRow + j, descriptor);
+                else if (gridSize > 0)
+                    assignments[k] = imageFinder.searchIndex(descriptor);
+                else
+                    assignments[k] = imageFinder.searchIndex(
+                            descriptor[0], descriptor[1], descriptor[2]);
 
-                red += ((pixel >> 16) & 0xFF);
-                green += ((pixel >> 8) & 0xFF);
-                blue += (pixel & 0xFF);
+                if (report != null)
+                    report.recordSearch(System.nanoTime() - start);
+            }
+        }
+        return assignments;
+    }
+
+    // The grid of average colors of a square
+    private void fillGrid(SummedAreaTable table, int i, int j,
+                          int[] columnEnds, int[] rowEnds, int gridSize, int[] grid) {
+        int x = i * mosaicWidth;
+        int y = j * mosaicHeight;
+
+        for (int v = 0, d = 0; v < gridSize; v++) {
+            for (int u = 0; u < gridSize; u++, d += 3) {
+                int rgb = table.average(
+                        x + columnEnds[u], y + rowEnds[v],
+                        x + columnEnds[u + 1], y + rowEnds[v + 1]);
+
+                grid[d] = (rgb >> 16) & 0xFF;
+                grid[d + 1] = (rgb >> 8) & 0xFF;
+                grid[d + 2] = rgb & 0xFF;
             }
         }
-        return new int[]{red / mosaicSize,
-                green / mosaicSize,
-                blue / mosaicSize};
     }
 
     /**
-     * Writes a reduced image into the new image's buffer
+     * Gives every row of mosaic squares to a pool of threads,
+     * a thread takes the next row when it has finished one.
      *
-     * @param newImage     ..
-     * @param reducedImage ..
-     * @param startX       ..
-     * @param startY       ..
+     * @param table    summed-area table of the goal image
+     * @param newImage the mosaic image
+     * @param sizeX    number of squares in a row
+     * @param sizeY       number of rows
+     * @param assignments images of the squares, or null to search them
+     * @throws IOException if a row fails
      */
-    private void writeNewImage(BufferedImage newImage,
-                               int[][][] reducedImage,
-                               int startX, int startY) {
+    private void makeRowsInParallel(SummedAreaTable table, BufferedImage newImage,
+                                    int sizeX, int sizeY,
+                                    int[] assignments) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threadsNumber);
+        ThreadLocal<PixelKernel> pixelKernels = ThreadLocal.withInitial(PixelKernel::new);
+        List<Callable<Void>> rows = new ArrayList<>(sizeY);
+
+        for (int j = 0; j < sizeY; j++) {
+            int row = j;
+            rows.add(() -> {
+                makeRow(table, newImage, sizeX, row, assignments, pixelKernels.get());
+                return null;
+            });
+        }
 
-        int baseX = startX * mosaicWidth;
-        int baseY = startY * mosaicHeight;
+        try {
+            for (Future<Void> future : executor.invokeAll(rows))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while making the mosaic", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        for (int i = baseX; i < baseX + mosaicWidth; i++) {
-            for (int j = baseY; j < baseY + mosaicHeight; j++) {
-                int[] pixel = reducedImage[i - baseX][j - baseY];
+    /**
+     * Makes a row of mosaic squares, square by square.
+     *
+     * @param table       summed-area table of the goal image
+     * @param newImage    the mosaic image
+     * @param sizeX       number of squares in a row
+     * @param j           the row
+     * @param assignments images of the squares, or null to search them
+     * @param pixelKernel of the current thread
+     * @throws IOException ..
+     */
+    private void makeRow(SummedAreaTable table, BufferedImage newImage,
+                         int sizeX, int j, int[] assignments,
+                         PixelKernel pixelKernel) throws IOException {
+        // With grids, a mosaic square is divided like its tiles
+        int gridSize = imageFinder.getGridSize();
+        int[] grid = new int[3 * gridSize * gridSize];
+        int[] columnEnds = new int[gridSize + 1];
+        int[] rowEnds = new int[gridSize + 1];
+
+        if (gridSize > 0) {
+            PixelKernel.divide(columnEnds, mosaicWidth, gridSize);
+            PixelKernel.divide(rowEnds, mosaicHeight, gridSize);
+        }
 
-                newImage.setRGB(i, j,
-                        (pixel[0] << 16) |
-                                (pixel[1] << 8) |
-                                (pixel[2]));
+        for (int i = 0; i < sizeX; i++) {
+            int index;
+            long start = 0;
+
+            if (assignments != null) {
+                index = assignments[j * sizeX + i];
+                if (index < 0)
+                    continue;
+            } else if (gridSize > 0) {
+                fillGrid(table, i, j, columnEnds, rowEnds, gridSize, grid);
+
+                start = report == null ? 0 : System.nanoTime();
+                index = imageFinder.searchIndex(grid);
+            } else {
+                int rgb = table.average(
+                        i * mosaicWidth, j * mosaicHeight,
+                        (i + 1) * mosaicWidth, (j + 1) * mosaicHeight);
+
+                start = report == null ? 0 : System.nanoTime();
+                index = imageFinder.searchIndex(
+                        (rgb >> 16) & 0xFF,
+                        (rgb >> 8) & 0xFF,
+                        rgb & 0xFF);
             }
+
+            // Assigned squares are recorded when they are searched
+            if (report != null && assignments == null)
+                report.recordSearch(System.nanoTime() - start);
+
+            int[] reducedImage = reduceImage(index, pixelKernel);
+
+            PixelKernel.blit(reducedImage, mosaicWidth, mosaicHeight,
+                    newImage, i * mosaicWidth, j * mosaicHeight);
+        }
+    }
+
+    /**
+     * Reads a reduced image from the cache, if it's not there,
+     * reads it from the atlas or reduces its image file, then
+     * puts it into the cache.
+     *
+     * @param index       list index of the image
+     * @param pixelKernel of the current thread
+     * @return a images' pixels values
+     * @throws IOException ..
+     */
+    private int[] reduceImage(int index, PixelKernel pixelKernel)
+            throws IOException {
+        if (tileCache == null)
+            return loadImage(index, pixelKernel);
+
+        String key = TileCache.key(imageFinder.getPath(index),
+                mosaicWidth, mosaicHeight);
+        int[] pixelArray = tileCache.get(key);
+
+        if (pixelArray == null) {
+            pixelArray = loadImage(index, pixelKernel);
+            tileCache.put(key, pixelArray);
         }
+        return pixelArray;
     }
 
-}
\ No newline at end of file
+    private int[] loadImage(int index, PixelKernel pixelKernel)
+            throws IOException {
+        if (atlas != null) {
+            if (report != null)
+                report.count("tiles.fromAtlas");
+            return atlas.read(index);
+        }
+
+        File file = new File(imageFinder.getPath(index));
+        int[] pixelArray = new int[size];
+        pixelKernel.reduce(ImageIO.read(file),
+                mosaicWidth, mosaicHeight, pixelArray);
+
+        if (report != null) {
+            report.count("tiles.decoded");
+            report.add("bytes.read", file.length());
+        }
+
+        return pixelArray;
+    }
+}
@@ -0,0 +1,167 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The paths of a library share long prefixes, every one of them
+ * starts with the library directory and most of them share their
+ * directory with thousands of others, so keeping them as String
+ * objects stores the same prefixes again and again.
+ * Here a path is the directory it's in and its name: every directory
+ * is kept once, as its parent directory and the part it adds to it,
+ * and the names are UTF-8 bytes one after another in a single array.
+ * There is no object for a path until get() is called.
+ */
+class PathTable {
+    // Directory of every path, -1 if it has none
+    private int[] directories;
+    // Name of path i is [nameStarts[i], nameStarts[i + 1]) of names
+    private int[] nameStarts;
+    private byte[] names;
+    private int size;
+
+    // Every directory is its parent plus its own part, which ends
+    // with a separator, so a path is rebuilt exactly as it was given.
+    private int[] parents = new int[16];
+    private String[] parts = new String[16];
+    private int directoriesNumber;
+    private final HashMap<String, Integer> directoryIds = new HashMap<>();
+
+    // Paths usually come directory by directory
+    private String lastDirectory;
+    private int lastDirectoryId = -1;
+
+    /**
+     * @param capacity number of paths we expect
+     */
+    PathTable(int capacity) {
+        capacity = Math.max(1, capacity);
+        directories = new int[capacity];
+        nameStarts = new int[capacity + 1];
+        names = new byte[16 * capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param path ..
+     * @return index of the path, which is the number of paths
+     * added before it.
+     */
+    int add(String path) {
+        int split = lastSeparator(path, path.length()) + 1;
+        int directory = directory(path.substring(0, split));
+        byte[] name = path.substring(split).getBytes(StandardCharsets.UTF_8);
+
+        if (size == directories.length) {
+            directories = Arrays.copyOf(directories, 2 * size);
+            nameStarts = Arrays.copyOf(nameStarts, 2 * size + 1);
+        }
+
+        int start = nameStarts[size];
+        if (start + name.length > names.length) {
+            long length = Math.max(2L * names.length, (long) start + name.length);
+            if (length > Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Too many paths for a PathTable");
+            names = Arrays.copyOf(names, (int) length);
+        }
+
+        System.arraycopy(name, 0, names, start, name.length);
+        directories[size] = directory;
+        nameStarts[size + 1] = start + name.length;
+        return size++;
+    }
+
+    /**
+     * @param index ..
+     * @return the path, as it was added.
+     */
+    String get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Path " + index + " of " + size);
+
+        StringBuilder builder = new StringBuilder(64);
+        appendDirectory(builder, directories[index]);
+
+        return builder.append(new String(names, nameStarts[index],
+                nameStarts[index + 1] - nameStarts[index], StandardCharsets.UTF_8))
+                .toString();
+    }
+
+    private void appendDirectory(StringBuilder builder, int directory) {
+        if (directory < 0)
+            return;
+        appendDirectory(builder, parents[directory]);
+        builder.append(parts[directory]);
+    }
+
+    /**
+     * Id of a directory, which is added with its parents if
+     * we don't have it yet.
+     *
+     * @param directory ends with a separator, or is empty
+     * @return id, or -1 for the empty one
+     */
+    private int directory(String directory) {
+        if (directory.isEmpty())
+            return -1;
+        if (directory.equals(lastDirectory))
+            return lastDirectoryId;
+
+        int split = lastSeparator(directory, directory.length() - 1) + 1;
+        int parent = directory(directory.substring(0, split));
+        String part = directory.substring(split);
+
+        String key = parent + ":" + part;
+        Integer id = directoryIds.get(key);
+
+        if (id == null) {
+            if (directoriesNumber == parents.length) {
+                parents = Arrays.copyOf(parents, 2 * directoriesNumber);
+                parts = Arrays.copyOf(parts, 2 * directoriesNumber);
+            }
+
+            id = directoriesNumber++;
+            parents[id] = parent;
+            parts[id] = part;
+            directoryIds.put(key, id);
+        }
+
+        lastDirectory = directory;
+        lastDirectoryId = id;
+        return id;
+    }
+
+    // The last separator before the end, -1 if there is none
+    private static int lastSeparator(String path, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            char c = path.charAt(i);
+            if (c == '/' || c == '\\')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Frees the room which was kept for more paths.
+     */
+    void trim() {
+        directories = Arrays.copyOf(directories, size);
+        nameStarts = Arrays.copyOf(nameStarts, size + 1);
+        names = Arrays.copyOf(names, nameStarts[size]);
+    }
+
+    /**
+     * @return about how many bytes the paths take, without the
+     * lookup of directories.
+     */
+    long memorySize() {
+        long bytes = 4L * directories.length + 4L * nameStarts.length + names.length;
+
+        for (int i = 0; i < directoriesNumber; i++)
+            bytes += 4 + 40 + 2L * parts[i].length();
+        return bytes;
+    }
+}
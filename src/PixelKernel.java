@@ -0,0 +1,365 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+/**
+ * All our pixel loops, averaging a region, reducing an image to a
+ * tile and copying a tile into the mosaic, work on the arrays of the
+ * rasters directly, row by row, rather than calling getRGB() and
+ * setRGB() for every pixel.
+ * Images whose pixels we can't read directly, like gray ones, are
+ * read a row at a time with getRGB() into a scratch buffer.
+ * The scratch buffers are reused, so a PixelKernel must not be
+ * shared by several threads.
+ */
+class PixelKernel {
+    // Layouts of the rasters we can read directly
+    private static final int INT_RGB = 0;
+    private static final int BYTE_BGR = 1;
+    private static final int BYTE_ABGR = 2;
+    private static final int OTHER = 3;
+
+    private int[] row = new int[0];
+    private long[] sums = new long[0];
+    private int[] columns = new int[0];
+    private int[] rows = new int[0];
+
+    /**
+     * Calculates the average value of all pixels within
+     * a specific region, with long sums, so a big photo
+     * doesn't overflow them.
+     *
+     * @param image  ..
+     * @param startX ..
+     * @param startY ..
+     * @param endX   exclusive
+     * @param endY   exclusive
+     * @return average rgb value
+     */
+    int average(BufferedImage image, int startX, int startY,
+                int endX, int endY) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long size = (long) (endX - startX) * (endY - startY);
+
+        if (size <= 0)
+            return 0;
+
+        Raster raster = image.getRaster();
+        int layout = layout(image);
+
+        if (layout == INT_RGB) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = scanlineStride(raster);
+
+            for (int y = startY; y < endY; y++) {
+                int offset = y * stride;
+                for (int x = startX; x < endX; x++) {
+                    int rgb = data[offset + x];
+
+                    red += (rgb >> 16) & 0xFF;
+                    green += (rgb >> 8) & 0xFF;
+                    blue += rgb & 0xFF;
+                }
+            }
+        } else if (layout == BYTE_BGR || layout == BYTE_ABGR) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = scanlineStride(raster);
+            int pixelStride = layout == BYTE_BGR ? 3 : 4;
+            int first = layout == BYTE_BGR ? 0 : 1; // skips alpha
+
+            for (int y = startY; y < endY; y++) {
+                int offset = y * stride + startX * pixelStride + first;
+                for (int x = startX; x < endX; x++, offset += pixelStride) {
+                    blue += data[offset] & 0xFF;
+                    green += data[offset + 1] & 0xFF;
+                    red += data[offset + 2] & 0xFF;
+                }
+            }
+        } else {
+            int width = endX - startX;
+            int[] buffer = row(width);
+
+            for (int y = startY; y < endY; y++) {
+                image.getRGB(startX, y, width, 1, buffer, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int rgb = buffer[x];
+
+                    red += (rgb >> 16) & 0xFF;
+                    green += (rgb >> 8) & 0xFF;
+                    blue += rgb & 0xFF;
+                }
+            }
+        }
+
+        return (int) (red / size) << 16 |
+                (int) (green / size) << 8 |
+                (int) (blue / size);
+    }
+
+    /**
+     * To reduce the size of a image to a new size of
+     * tileWidth * tileHeight, every pixel of the tile is the average
+     * of its region. The image is read once, row by row, and every
+     * row adds its pixels to the sums of the regions it crosses.
+     *
+     * @param image      the image, or null if it can't be opened
+     * @param tileWidth  ..
+     * @param tileHeight ..
+     * @param tile       is filled with rgb values, row by row
+     */
+    void reduce(BufferedImage image, int tileWidth, int tileHeight,
+                int[] tile) {
+        if (image == null) {
+            Arrays.fill(tile, 0, tileWidth * tileHeight, 0);
+            return;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        columns = grow(columns, tileWidth + 1);
+        rows = grow(rows, tileHeight + 1);
+        sums = grow(sums, 3 * tileWidth);
+
+        int[] columnEnds = divide(columns, width, tileWidth);
+        int[] rowEnds = divide(rows, height, tileHeight);
+        long[] regionSums = sums;
+
+        Raster raster = image.getRaster();
+        int layout = layout(image);
+        int stride = layout == OTHER ? 0 : scanlineStride(raster);
+
+        for (int j = 0; j < tileHeight; j++) {
+            Arrays.fill(regionSums, 0, 3 * tileWidth, 0);
+
+            for (int y = rowEnds[j]; y < rowEnds[j + 1]; y++) {
+                if (layout == INT_RGB) {
+                    int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                    addRow(data, y * stride, columnEnds, tileWidth, regionSums);
+                } else if (layout == BYTE_BGR || layout == BYTE_ABGR) {
+                    byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                    int pixelStride = layout == BYTE_BGR ? 3 : 4;
+                    addRow(data, y * stride + (layout == BYTE_BGR ? 0 : 1),
+                            pixelStride, columnEnds, tileWidth, regionSums);
+                } else {
+                    int[] buffer = row(width);
+                    image.getRGB(0, y, width, 1, buffer, 0, width);
+                    addRow(buffer, 0, columnEnds, tileWidth, regionSums);
+                }
+            }
+
+            int regionHeight = rowEnds[j + 1] - rowEnds[j];
+            for (int i = 0; i < tileWidth; i++) {
+                long size = (long) (columnEnds[i + 1] - columnEnds[i]) * regionHeight;
+
+                tile[j * tileWidth + i] = size == 0 ? 0 :
+                        (int) (regionSums[3 * i] / size) << 16 |
+                                (int) (regionSums[3 * i + 1] / size) << 8 |
+                                (int) (regionSums[3 * i + 2] / size);
+            }
+        }
+    }
+
+    private static void addRow(int[] data, int offset, int[] columnEnds,
+                               int tileWidth, long[] regionSums) {
+        for (int i = 0; i < tileWidth; i++) {
+            long red = 0;
+            long green = 0;
+            long blue = 0;
+
+            for (int x = offset + columnEnds[i], end = offset + columnEnds[i + 1];
+                 x < end; x++) {
+                int rgb = data[x];
+
+                red += (rgb >> 16) & 0xFF;
+                green += (rgb >> 8) & 0xFF;
+                blue += rgb & 0xFF;
+            }
+
+            regionSums[3 * i] += red;
+            regionSums[3 * i + 1] += green;
+            regionSums[3 * i + 2] += blue;
+        }
+    }
+
+    private static void addRow(byte[] data, int offset, int pixelStride,
+                               int[] columnEnds, int tileWidth,
+                               long[] regionSums) {
+        for (int i = 0; i < tileWidth; i++) {
+            long red = 0;
+            long green = 0;
+            long blue = 0;
+
+            for (int x = offset + columnEnds[i] * pixelStride,
+                 end = offset + columnEnds[i + 1] * pixelStride;
+                 x < end; x += pixelStride) {
+                blue += data[x] & 0xFF;
+                green += data[x + 1] & 0xFF;
+                red += data[x + 2] & 0xFF;
+            }
+
+            regionSums[3 * i] += red;
+            regionSums[3 * i + 1] += green;
+            regionSums[3 * i + 2] += blue;
+        }
+    }
+
+    /**
+     * To divide the image as uniform as we can, for example,
+     * if we want to divide 6 into 4 parts, we let first 2 parts
+     * have one more than the rest parts, we get 2, 2, 1, 1 as
+     * the result.
+     *
+     * @param ends   is filled with the start of every part and
+     *               the end of the last one.
+     * @param length length to divide
+     * @param parts  number of parts
+     * @return ends
+     */
+    static int[] divide(int[] ends, int length, int parts) {
+        int size = length / parts;
+        int rest = length % parts;
+
+        for (int i = 0; i <= parts; i++)
+            ends[i] = i < rest
+                    ? i * (size + 1)
+                    : i * size + rest;
+
+        return ends;
+    }
+
+    /**
+     * Reads a row of an image, the returned array is a scratch
+     * buffer, so it's only valid until the next call.
+     *
+     * @param image ..
+     * @param y     the row
+     * @return rgb values of the row
+     */
+    int[] readRow(BufferedImage image, int y) {
+        int width = image.getWidth();
+        int[] buffer = row(width);
+        Raster raster = image.getRaster();
+        int layout = layout(image);
+
+        if (layout == INT_RGB) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = y * scanlineStride(raster);
+
+            for (int x = 0; x < width; x++)
+                buffer[x] = data[offset + x] & 0xFFFFFF;
+        } else if (layout == BYTE_BGR || layout == BYTE_ABGR) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int pixelStride = layout == BYTE_BGR ? 3 : 4;
+            int offset = y * scanlineStride(raster) + (layout == BYTE_BGR ? 0 : 1);
+
+            for (int x = 0; x < width; x++, offset += pixelStride)
+                buffer[x] = (data[offset + 2] & 0xFF) << 16 |
+                        (data[offset + 1] & 0xFF) << 8 |
+                        (data[offset] & 0xFF);
+        } else {
+            image.getRGB(0, y, width, 1, buffer, 0, width);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Copies a tile into an image of type TYPE_INT_RGB, a row
+     * of the tile at a time.
+     *
+     * @param tile       rgb values, row by row
+     * @param tileWidth  ..
+     * @param tileHeight ..
+     * @param image      must be TYPE_INT_RGB
+     * @param x          left of the tile in the image
+     * @param y          top of the tile in the image
+     */
+    static void blit(int[] tile, int tileWidth, int tileHeight,
+                     BufferedImage image, int x, int y) {
+        Raster raster = image.getRaster();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int stride = scanlineStride(raster);
+
+        for (int j = 0; j < tileHeight; j++)
+            System.arraycopy(tile, j * tileWidth,
+                    data, (y + j) * stride + x, tileWidth);
+    }
+
+    /**
+     * Enlarges a small tile to a bigger one, every pixel of the
+     * result takes the pixel of the tile it falls into.
+     *
+     * @param tile         rgb values, row by row
+     * @param tileWidth    ..
+     * @param tileHeight   ..
+     * @param result       rgb values of the bigger tile
+     * @param resultWidth  ..
+     * @param resultHeight ..
+     */
+    static void enlarge(int[] tile, int tileWidth, int tileHeight,
+                        int[] result, int resultWidth, int resultHeight) {
+        for (int y = 0, k = 0; y < resultHeight; y++) {
+            int row = y * tileHeight / resultHeight * tileWidth;
+
+            for (int x = 0; x < resultWidth; x++, k++)
+                result[k] = tile[row + x * tileWidth / resultWidth];
+        }
+    }
+
+    /**
+     * Decides whether we can read the raster's array directly, only
+     * plain rasters which are not a part of another one are read so.
+     */
+    private static int layout(BufferedImage image) {
+        Raster raster = image.getRaster();
+
+        if (raster.getSampleModelTranslateX() != 0 ||
+                raster.getSampleModelTranslateY() != 0 ||
+                raster.getDataBuffer().getOffset() != 0)
+            return OTHER;
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                return raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                        ? INT_RGB : OTHER;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return raster.getSampleModel() instanceof ComponentSampleModel
+                        ? BYTE_BGR : OTHER;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return raster.getSampleModel() instanceof ComponentSampleModel
+                        ? BYTE_ABGR : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    private static int scanlineStride(Raster raster) {
+        SampleModel sampleModel = raster.getSampleModel();
+
+        if (sampleModel instanceof SinglePixelPackedSampleModel)
+            return ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+
+        return ((ComponentSampleModel) sampleModel).getScanlineStride();
+    }
+
+    private int[] row(int width) {
+        return row = grow(row, width);
+    }
+
+    private static int[] grow(int[] array, int length) {
+        return array.length >= length ? array : new int[length];
+    }
+
+    private static long[] grow(long[] array, int length) {
+        return array.length >= length ? array : new long[length];
+    }
+}
@@ -0,0 +1,284 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a Library loaded and makes mosaic images over HTTP on the
+ * loopback address, so the index and the tile cache stay warm
+ * between requests.
+ * <pre>
+ * POST /render?width=20&amp;height=20&amp;format=png   goal image in, mosaic image out
+ *              &amp;maxUses=2&amp;noRepeat=3            optional limits, see TileAssigner
+ * POST /reload?refresh=true                      loads the library again
+ * GET  /status                                   library and queue, as JSON
+ * </pre>
+ * At most concurrency renders run at the same time, up to queueSize
+ * more wait for their turn and the rest are refused with 503.
+ * Every response of /render tells how long it waited and rendered,
+ * in X-Decode-Millis, X-Queue-Millis, X-Render-Millis, X-Encode-Millis
+ * and Server-Timing headers.
+ * A reload builds the new Library aside and swaps it in when it's
+ * ready, renders which have started keep the old one.
+ */
+class RenderService {
+    private final int mosaicWidth;
+    private final int mosaicHeight;
+    private final int concurrency;
+    private final int queueSize;
+    private final RunReport report;
+
+    private final AtomicReference<Library> library = new AtomicReference<>();
+    private final Semaphore renders;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Object reloadLock = new Object();
+    private HttpServer server;
+
+    /**
+     * @param library      the loaded library
+     * @param mosaicWidth  tile width of requests without one
+     * @param mosaicHeight tile height of requests without one
+     * @param concurrency  renders running at the same time
+     * @param queueSize    renders waiting at the same time
+     * @param report       ..
+     */
+    RenderService(Library library, int mosaicWidth, int mosaicHeight,
+                  int concurrency, int queueSize, RunReport report) {
+        this.mosaicWidth = mosaicWidth;
+        this.mosaicHeight = mosaicHeight;
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+        this.report = report;
+        this.library.set(library);
+        this.renders = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Starts serving, requests are handled by their own threads,
+     * so this returns at once.
+     *
+     * @param port on the loopback address, 0 for any free port
+     * @return the port
+     * @throws IOException ..
+     */
+    int start(int port) throws IOException {
+        server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        server.createContext("/render", this::render);
+        server.createContext("/reload", this::reload);
+        server.createContext("/status", this::status);
+
+        // Waiting requests need threads too, the semaphore
+        // decides which ones render.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                concurrency + queueSize + 1);
+        server.setExecutor(executor);
+        server.start();
+
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops serving, after renders which have started.
+     *
+     * @param delay seconds to wait for them
+     */
+    void stop(int delay) {
+        server.stop(delay);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    private void render(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "Use POST with the goal image as the body\n");
+                return;
+            }
+
+            Map<String, String> query = query(exchange.getRequestURI());
+            String format = query.getOrDefault("format", "png");
+            int width;
+            int height;
+            int maxUses;
+            int repeatDistance;
+
+            try {
+                width = Integer.parseInt(query.getOrDefault("width", "" + mosaicWidth));
+                height = Integer.parseInt(query.getOrDefault("height", "" + mosaicHeight));
+                maxUses = Integer.parseInt(query.getOrDefault("maxUses", "0"));
+                repeatDistance = Integer.parseInt(query.getOrDefault("noRepeat", "0"));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, "width, height, maxUses and noRepeat must be numbers\n");
+                return;
+            }
+
+            if (width <= 0 || height <= 0 || maxUses < 0 || repeatDistance < 0 ||
+                    !ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                send(exchange, 400, "Wrong tile size or format\n");
+                return;
+            }
+
+            if (pending.incrementAndGet() > concurrency + queueSize) {
+                pending.decrementAndGet();
+                report.count("service.refused");
+                send(exchange, 503, "Too many renders, try again later\n");
+                return;
+            }
+
+            long start = System.nanoTime();
+            byte[] body;
+            long decoded;
+            long queued;
+            long rendered;
+
+            try {
+                BufferedImage goal = ImageIO.read(exchange.getRequestBody());
+                if (goal == null) {
+                    send(exchange, 400, "Can't read the goal image\n");
+                    return;
+                }
+
+                decoded = System.nanoTime();
+                renders.acquire();
+                try {
+                    queued = System.nanoTime();
+
+                    MosaicImage mosaicImage = library.get().newMosaicImage(null,
+                            width, height);
+                    mosaicImage.useSummedAreaTable(new SummedAreaTable(goal));
+                    mosaicImage.setUsageLimits(maxUses, repeatDistance);
+                    mosaicImage.setThreadsNumber(Math.max(1,
+                            Runtime.getRuntime().availableProcessors() / concurrency));
+
+                    BufferedImage mosaic = mosaicImage.render();
+                    rendered = System.nanoTime();
+
+                    ByteArrayOutputStream output = new ByteArrayOutputStream();
+                    ImageIO.write(mosaic, format, output);
+                    body = output.toByteArray();
+                } finally {
+                    renders.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "Interrupted\n");
+                return;
+            } finally {
+                pending.decrementAndGet();
+            }
+
+            long end = System.nanoTime();
+            double decodeMillis = (decoded - start) / 1e6;
+            double queueMillis = (queued - decoded) / 1e6;
+            double renderMillis = (rendered - queued) / 1e6;
+            double encodeMillis = (end - rendered) / 1e6;
+
+            report.count("service.renders");
+            exchange.getResponseHeaders().set("Content-Type", "image/" + format.toLowerCase());
+            exchange.getResponseHeaders().set("X-Decode-Millis", String.format("%.1f", decodeMillis));
+            exchange.getResponseHeaders().set("X-Queue-Millis", String.format("%.1f", queueMillis));
+            exchange.getResponseHeaders().set("X-Render-Millis", String.format("%.1f", renderMillis));
+            exchange.getResponseHeaders().set("X-Encode-Millis", String.format("%.1f", encodeMillis));
+            exchange.getResponseHeaders().set("Server-Timing", String.format(
+                    "decode;dur=%.1f, queue;dur=%.1f, render;dur=%.1f, encode;dur=%.1f",
+                    decodeMillis, queueMillis, renderMillis, encodeMillis));
+            send(exchange, 200, body);
+        } catch (RuntimeException | IOException e) {
+            report.count("service.errors");
+            send(exchange, 500, "Can't make the mosaic image: " + e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void reload(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "Use POST\n");
+                return;
+            }
+
+            boolean refresh = Boolean.parseBoolean(
+                    query(exchange.getRequestURI()).get("refresh"));
+            long start = System.nanoTime();
+
+            // One reload at a time, renders go on with the old
+            // library until the new one is swapped in.
+            synchronized (reloadLock) {
+                library.set(library.get().reload(refresh));
+            }
+
+            report.count("service.reloads");
+            send(exchange, 200, String.format(
+                    "{\"images\": %d, \"millis\": %.1f}%n",
+                    library.get().size(), (System.nanoTime() - start) / 1e6));
+        } catch (RuntimeException | IOException e) {
+            send(exchange, 500, "Can't reload the library: " + e + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        try {
+            Library current = library.get();
+            int waiting = Math.max(0, pending.get() - concurrency);
+
+            send(exchange, 200, String.format(
+                    "{\"images\": %d, \"pending\": %d, \"waiting\": %d, " +
+                            "\"concurrency\": %d, \"queueSize\": %d, \"tileCache\": \"%s\"}%n",
+                    current.size(), pending.get(), waiting,
+                    concurrency, queueSize, current.getTileCache()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> query(URI uri) {
+        Map<String, String> query = new HashMap<>();
+        String raw = uri.getQuery();
+
+        if (raw == null)
+            return query;
+
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+                query.put(pair.substring(0, equals), pair.substring(equals + 1));
+            else if (!pair.isEmpty())
+                query.put(pair, "");
+        }
+        return query;
+    }
+
+    private static void send(HttpExchange exchange, int status,
+                             String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type",
+                text.startsWith("{") ? "application/json" : "text/plain; charset=utf-8");
+        send(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status,
+                             byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
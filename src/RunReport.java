@@ -0,0 +1,324 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects where the time of a run goes: the wall and CPU time of
+ * every phase, counters like decode failures and bytes read, and a
+ * histogram of the time a mosaic square needs to be searched.
+ * At the end of a run all of them are written as a JSON report.
+ * Counters and the histogram can be updated from several threads.
+ */
+class RunReport {
+    private final List<String> phases = new ArrayList<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+
+    // Searches taking [2^i, 2^(i+1)) nanoseconds fall into bucket i
+    private final AtomicLongArray searchBuckets = new AtomicLongArray(64);
+    private final LongAdder searchCount = new LongAdder();
+    private final LongAdder searchSum = new LongAdder();
+    private final AtomicLong searchMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong searchMax = new AtomicLong();
+
+    private volatile String progressName;
+    private volatile long progressDone, progressTotal;
+    private ScheduledExecutorService progressPrinter;
+
+    /**
+     * The time of a phase, it's recorded when it's closed:
+     * <pre>
+     * try (RunReport.Phase phase = report.phase("sort")) {
+     *     ...
+     *     double seconds = phase.seconds();
+     * }
+     * </pre>
+     * A phase which isn't asked anything is easier with time().
+     */
+    class Phase implements AutoCloseable {
+        private final String name;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = processCpuTime();
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return wall time since the phase started, in seconds.
+         */
+        double seconds() {
+            return (System.nanoTime() - wallStart) / 1e9;
+        }
+
+        @Override
+        public void close() {
+            long wall = System.nanoTime() - wallStart;
+            long cpu = cpuStart < 0 ? -1 : processCpuTime() - cpuStart;
+
+            synchronized (phases) {
+                phases.add("{\"name\": " + quote(name)
+                        + ", \"wallMillis\": " + wall / 1_000_000.0
+                        + ", \"cpuMillis\": " + (cpu < 0 ? -1 : cpu / 1_000_000.0)
+                        + "}");
+            }
+        }
+    }
+
+    /**
+     * Starts a phase, its CPU time is the CPU time of the whole
+     * process, so the work of all threads is counted.
+     *
+     * @param name ..
+     * @return the phase, which must be closed
+     */
+    Phase phase(String name) {
+        return new Phase(name);
+    }
+
+    // The work of a phase, see time()
+    interface Step<T> {
+        T run() throws IOException;
+    }
+
+    interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * Records the time of a phase which runs the given step.
+     *
+     * @param name ..
+     * @param step ..
+     * @return what the step returns
+     * @throws IOException if the step throws it
+     */
+    <T> T time(String name, Step<T> step) throws IOException {
+        Phase phase = phase(name);
+        try {
+            return step.run();
+        } finally {
+            phase.close();
+        }
+    }
+
+    /**
+     * Same as time(String, Step), for a step which returns nothing.
+     *
+     * @param name   ..
+     * @param action ..
+     * @throws IOException if the action throws it
+     */
+    void time(String name, Action action) throws IOException {
+        time(name, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param counter name of the counter
+     * @param delta   ..
+     */
+    void add(String counter, long delta) {
+        counters.computeIfAbsent(counter, key -> new LongAdder()).add(delta);
+    }
+
+    void count(String counter) {
+        add(counter, 1);
+    }
+
+    long get(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * @param name like "images.perSecond"
+     * @param rate ..
+     */
+    void rate(String name, double rate) {
+        rates.put(name, rate);
+    }
+
+    /**
+     * @param nanos time of a search of a mosaic square
+     */
+    void recordSearch(long nanos) {
+        searchBuckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+        searchCount.increment();
+        searchSum.add(nanos);
+        searchMin.accumulateAndGet(nanos, Math::min);
+        searchMax.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Updates the progress which the progress line prints.
+     *
+     * @param name  what is in progress, like "indexing"
+     * @param done  ..
+     * @param total ..
+     */
+    void progress(String name, long done, long total) {
+        progressName = name;
+        progressDone = done;
+        progressTotal = total;
+    }
+
+    /**
+     * Prints a line with the latest progress periodically, until
+     * stopProgressLine() is called.
+     *
+     * @param periodSeconds ..
+     */
+    synchronized void startProgressLine(long periodSeconds) {
+        if (progressPrinter != null)
+            return;
+
+        long start = System.nanoTime();
+        progressPrinter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        progressPrinter.scheduleAtFixedRate(() -> {
+            String name = progressName;
+            if (name == null)
+                return;
+
+            long done = progressDone;
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s: %d/%d, %.1f per second%n",
+                    name, done, progressTotal, done / seconds);
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized void stopProgressLine() {
+        if (progressPrinter != null) {
+            progressPrinter.shutdownNow();
+            progressPrinter = null;
+        }
+    }
+
+    /**
+     * @return the report as a JSON object
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": [");
+
+        synchronized (phases) {
+            for (int i = 0; i < phases.size(); i++)
+                json.append(i == 0 ? "\n    " : ",\n    ").append(phases.get(i));
+        }
+        json.append("\n  ],\n  \"counters\": {");
+
+        appendMap(json, new TreeMap<>(counters));
+        json.append("},\n  \"rates\": {");
+        appendMap(json, new TreeMap<>(rates));
+
+        long count = searchCount.sum();
+        json.append("},\n  \"searchNanos\": {")
+                .append("\"count\": ").append(count);
+
+        if (count > 0) {
+            json.append(", \"min\": ").append(searchMin.get())
+                    .append(", \"mean\": ").append(searchSum.sum() / count)
+                    .append(", \"p50\": ").append(percentile(count, 0.50))
+                    .append(", \"p90\": ").append(percentile(count, 0.90))
+                    .append(", \"p99\": ").append(percentile(count, 0.99))
+                    .append(", \"max\": ").append(searchMax.get())
+                    .append(", \"histogram\": {");
+
+            boolean first = true;
+            for (int i = 0; i < searchBuckets.length(); i++) {
+                long bucket = searchBuckets.get(i);
+                if (bucket == 0)
+                    continue;
+
+                // Keyed by the upper bound of the bucket
+                json.append(first ? "" : ", ")
+                        .append("\"<").append(1L << Math.min(i + 1, 62)).append("\": ")
+                        .append(bucket);
+                first = false;
+            }
+            json.append("}");
+        }
+
+        return json.append("}\n}\n").toString();
+    }
+
+    /**
+     * Writes the report, it's written aside at first, then moved
+     * over the old one, so a half-written report is never left.
+     *
+     * @param file ..
+     * @throws IOException ..
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (Writer writer = new FileWriter(tmp)) {
+            writer.write(toJson());
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The upper bound of the bucket where the percentile is
+    private long percentile(long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+
+        for (int i = 0; i < searchBuckets.length(); i++) {
+            seen += searchBuckets.get(i);
+            if (seen >= rank)
+                return Math.min(searchMax.get(), (1L << Math.min(i + 1, 62)) - 1);
+        }
+        return searchMax.get();
+    }
+
+    private static void appendMap(StringBuilder json, Map<String, ?> map) {
+        boolean first = true;
+
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            json.append(first ? "" : ", ")
+                    .append(quote(entry.getKey())).append(": ")
+                    .append(value instanceof LongAdder ? ((LongAdder) value).sum() : value);
+            first = false;
+        }
+    }
+
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    // CPU time of the process in nanoseconds, -1 if the JVM can't tell
+    private static long processCpuTime() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+
+        if (bean instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+
+        return -1;
+    }
+}
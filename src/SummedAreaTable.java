@@ -0,0 +1,126 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * The goal image turned into a summed-area table for each color,
+ * an entry is the sum of all pixels above and to the left of it.
+ * Once the table is built, the average of any rectangle of the
+ * image takes four reads, whatever its size, so the image can be
+ * divided into mosaic squares of any size without reading its
+ * pixels again.
+ * The table is cut into strips of rows, and an entry only sums the
+ * rows of its strip, so the sums fit in an int and a huge image
+ * doesn't need a single array of more than 2^31 entries. A rectangle
+ * which crosses strips takes four reads in each of them.
+ */
+class SummedAreaTable {
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int stripHeight;
+    private final int[][] red;   // by strip
+    private final int[][] green;
+    private final int[][] blue;
+
+    /**
+     * Reads the image once, row by row, to build the tables.
+     *
+     * @param image the goal image
+     */
+    SummedAreaTable(BufferedImage image) {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.stride = width + 1;
+
+        // A strip of 255s must not overflow an int
+        this.stripHeight = Math.max(1, Math.min(height,
+                Integer.MAX_VALUE / 255 / Math.max(1, width)));
+
+        int strips = (height + stripHeight - 1) / stripHeight;
+        red = new int[strips][];
+        green = new int[strips][];
+        blue = new int[strips][];
+
+        PixelKernel pixelKernel = new PixelKernel();
+
+        for (int s = 0; s < strips; s++) {
+            int top = s * stripHeight;
+            int rows = Math.min(stripHeight, height - top);
+            int[] stripRed = red[s] = new int[stride * (rows + 1)];
+            int[] stripGreen = green[s] = new int[stride * (rows + 1)];
+            int[] stripBlue = blue[s] = new int[stride * (rows + 1)];
+
+            for (int y = 0; y < rows; y++) {
+                int[] row = pixelKernel.readRow(image, top + y);
+                int above = y * stride;
+                int current = above + stride;
+                int rowRed = 0;
+                int rowGreen = 0;
+                int rowBlue = 0;
+
+                for (int x = 0; x < width; x++) {
+                    int rgb = row[x];
+
+                    rowRed += (rgb >> 16) & 0xFF;
+                    rowGreen += (rgb >> 8) & 0xFF;
+                    rowBlue += rgb & 0xFF;
+
+                    stripRed[current + x + 1] = stripRed[above + x + 1] + rowRed;
+                    stripGreen[current + x + 1] = stripGreen[above + x + 1] + rowGreen;
+                    stripBlue[current + x + 1] = stripBlue[above + x + 1] + rowBlue;
+                }
+            }
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Calculates the average value of all pixels within
+     * a specific region.
+     *
+     * @param startX ..
+     * @param startY ..
+     * @param endX   exclusive
+     * @param endY   exclusive
+     * @return average rgb value
+     */
+    int average(int startX, int startY, int endX, int endY) {
+        long size = (long) (endX - startX) * (endY - startY);
+
+        if (size <= 0)
+            return 0;
+
+        long sumRed = 0;
+        long sumGreen = 0;
+        long sumBlue = 0;
+
+        for (int s = startY / stripHeight; s * stripHeight < endY; s++) {
+            int top = s * stripHeight;
+            int first = (Math.max(startY, top) - top) * stride;
+            int last = (Math.min(endY, top + stripHeight) - top) * stride;
+
+            int a = first + startX;
+            int b = first + endX;
+            int c = last + startX;
+            int d = last + endX;
+
+            // The sum of a part of a strip fits in an int
+            int[] r = red[s];
+            int[] g = green[s];
+            int[] bl = blue[s];
+            sumRed += r[d] - r[b] - r[c] + r[a];
+            sumGreen += g[d] - g[b] - g[c] + g[a];
+            sumBlue += bl[d] - bl[b] - bl[c] + bl[a];
+        }
+
+        return (int) (sumRed / size) << 16 |
+                (int) (sumGreen / size) << 8 |
+                (int) (sumBlue / size);
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * When we index the library, every image is opened anyway, so we
+ * reduce it to the tile sizes we will use at the same time, and put
+ * all of them into one file, a record for each image in the same
+ * order as index.bin. Every record has the same size, so the
+ * tile of an image is found by its list index directly, and we
+ * don't need to open thousands of image files to make a mosaic.
+ * The atlases are written before index.bin, so they can't know its
+ * time, rather both of them get the same generation, a random number
+ * of the indexing which wrote them, and an atlas of another one is
+ * not used:
+ * <pre>
+ * header:  magic, version, width, height, generation (long), count
+ * records: red, green, blue bytes of every pixel of a tile
+ * </pre>
+ * Version 1 atlases had no generation, they are still used with an
+ * index which has none either.
+ */
+class ThumbnailAtlas {
+    private static final int MAGIC = 0x4D41544C; // "MATL"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 28;
+    private static final int HEADER_SIZE_V1 = 20;
+
+    private final int width;
+    private final int height;
+    private final int recordSize;
+    private final int count;
+
+    // A single mapping can't be bigger than 2GB, so a big
+    // atlas is mapped in several chunks.
+    private final MappedByteBuffer[] chunks;
+    private final int recordsPerChunk;
+
+    private ThumbnailAtlas(FileChannel channel, int headerSize, int width,
+                           int height, int count) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.recordSize = 3 * width * height;
+        this.count = count;
+        this.recordsPerChunk = Integer.MAX_VALUE / recordSize;
+
+        int chunksNumber = (count + recordsPerChunk - 1) / recordsPerChunk;
+        chunks = new MappedByteBuffer[chunksNumber];
+
+        for (int i = 0; i < chunksNumber; i++) {
+            int records = Math.min(recordsPerChunk, count - i * recordsPerChunk);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    headerSize + (long) i * recordsPerChunk * recordSize,
+                    (long) records * recordSize);
+        }
+    }
+
+    /**
+     * @param width  tile width
+     * @param height tile height
+     * @return file name of the atlas of this tile size.
+     */
+    static String fileName(int width, int height) {
+        return "atlas" + width + "x" + height + ".bin";
+    }
+
+    /**
+     * Same as open(File, int, int, int, long), for an atlas
+     * without a generation.
+     *
+     * @param file   ..
+     * @param width  ..
+     * @param height ..
+     * @param count  ..
+     * @return ThumbnailAtlas object, or null
+     * @throws IOException ..
+     */
+    static ThumbnailAtlas open(File file, int width, int height,
+                               int count) throws IOException {
+        return open(file, width, height, count, 0);
+    }
+
+    /**
+     * Maps an atlas file.
+     *
+     * @param file       is the atlas file.
+     * @param width      tile width
+     * @param height     tile height
+     * @param count      is the number of images in the list, the
+     *                   atlas must have the same number of records.
+     * @param generation of index.bin, see FileGenerator.readGeneration()
+     * @return ThumbnailAtlas object, or null if there is no
+     * such file or it doesn't match the list.
+     * @throws IOException ..
+     */
+    static ThumbnailAtlas open(File file, int width, int height,
+                               int count, long generation) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE_V1)
+            return null;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC)
+                return null;
+
+            int version = header.getInt();
+            if (version != VERSION && (version != 1 || generation != 0))
+                return null;
+
+            int headerSize = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+            if (file.length() != headerSize + 3L * width * height * count ||
+                    header.getInt() != width ||
+                    header.getInt() != height ||
+                    (version > 1 && header.getLong() != generation) ||
+                    header.getInt() != count)
+                return null;
+
+            return new ThumbnailAtlas(channel, headerSize, width, height, count);
+        }
+    }
+
+    /**
+     * Writes the tiles kept by Image objects into an atlas file, only
+     * those which have positive norm are written, just like
+     * index.bin. The file is written aside and moved at last,
+     * so we never leave a broken atlas.
+     * If some tiles are missing, no atlas is written and the old one
+     * is deleted, because it doesn't match index.bin any more. The
+     * atlas has no generation.
+     *
+     * @param file      is the atlas file.
+     * @param width     tile width
+     * @param height    tile height
+     * @param sizeIndex is the index of this tile size in Image.thumbnails
+     * @param images    sorted list of Image objects
+     * @return false if some tiles are missing.
+     * @throws IOException ..
+     */
+    static boolean write(File file, int width, int height, int sizeIndex,
+                         List<Image> images) throws IOException {
+        try (Writer writer = new Writer(file, width, height, 0)) {
+            for (Image image : images) {
+                if (image.norm > 0)
+                    writer.add(image.thumbnails == null ? null : image.thumbnails[sizeIndex]);
+            }
+            return writer.finish();
+        }
+    }
+
+    /**
+     * Writes an atlas a record at a time, for images which are not
+     * all in memory. Like write(), the file is written aside, and if
+     * a tile is missing, no atlas is written and the old one is
+     * deleted.
+     */
+    static class Writer implements Closeable {
+        private final File file;
+        private final File tmp;
+        private final DataOutputStream out;
+        private int count;
+        private boolean missing;
+        private boolean finished;
+
+        /**
+         * @param file       is the atlas file.
+         * @param width      tile width
+         * @param height     tile height
+         * @param generation of the index.bin which is written next
+         * @throws IOException ..
+         */
+        Writer(File file, int width, int height, long generation) throws IOException {
+            this.file = file;
+            this.tmp = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), 1 << 16));
+
+            // The count is written when we know it
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeLong(generation);
+            out.writeInt(0);
+        }
+
+        /**
+         * @param record packed tile of the next image, or null
+         *               if we don't have it.
+         * @throws IOException ..
+         */
+        void add(byte[] record) throws IOException {
+            if (record == null)
+                missing = true;
+            if (missing)
+                return;
+
+            out.write(record);
+            count++;
+        }
+
+        /**
+         * Moves the atlas in place, or deletes the old one
+         * if some tiles are missing.
+         *
+         * @return false if some tiles are missing.
+         * @throws IOException ..
+         */
+        boolean finish() throws IOException {
+            finished = true;
+            out.close();
+
+            if (missing) {
+                Files.deleteIfExists(tmp.toPath());
+                Files.deleteIfExists(file.toPath());
+                return false;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.seek(HEADER_SIZE - 4);
+                raf.writeInt(count);
+                raf.getFD().sync();  // All of it, to be on the disk before moving it
+            }
+
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+
+        // Without finish(), nothing is written
+        @Override
+        public void close() throws IOException {
+            if (finished)
+                return;
+
+            out.close();
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Packs a reduced image into the bytes of a record.
+     *
+     * @param pixels rgb values, row by row
+     * @return red, green and blue bytes of every pixel
+     */
+    static byte[] pack(int[] pixels) {
+        byte[] record = new byte[3 * pixels.length];
+
+        for (int i = 0, j = 0; i < pixels.length; i++) {
+            record[j++] = (byte) (pixels[i] >> 16);
+            record[j++] = (byte) (pixels[i] >> 8);
+            record[j++] = (byte) pixels[i];
+        }
+        return record;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param index list index of the image
+     * @return the packed record of the tile
+     */
+    byte[] readRecord(int index) {
+        // A duplicate has its own position, so threads can read
+        // the same chunk at the same time.
+        ByteBuffer chunk = chunks[index / recordsPerChunk].duplicate();
+        chunk.position((index % recordsPerChunk) * recordSize);
+
+        byte[] record = new byte[recordSize];
+        chunk.get(record);
+        return record;
+    }
+
+    /**
+     * @param index list index of the image
+     * @return the tile's rgb values, row by row
+     */
+    int[] read(int index) {
+        byte[] record = readRecord(index);
+
+        int[] pixels = new int[width * height];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            pixels[i] = (record[j] & 0xFF) << 16 |
+                    (record[j + 1] & 0xFF) << 8 |
+                    (record[j + 2] & 0xFF);
+        }
+        return pixels;
+    }
+}
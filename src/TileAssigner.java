@@ -0,0 +1,123 @@
+import java.util.Arrays;
+
+/**
+ * Decides which image every mosaic square gets when the use of
+ * images is limited: an image can be used at most maxUses times, and
+ * the same image must not be within repeatDistance squares of itself.
+ * Squares are assigned one after another, row by row, since every
+ * decision depends on the ones before it. Every square asks for the
+ * few most similar images, and if all of them are near, for the k
+ * most similar ones, k is one more than the squares it must not
+ * repeat, so at least one of them can be used. Images which are used
+ * up are removed from the search by a mask, rather than skipped, so
+ * the search doesn't get slower as they are used up.
+ * When every image is used up, they can all be used again.
+ */
+class TileAssigner {
+    // Images a square asks for at first
+    private final static int firstCandidates = 4;
+
+    private final ImageFinder imageFinder;
+    private final int maxUses;
+    private final int repeatDistance;
+    private final int sizeX;
+
+    private ColorTree.Mask mask;
+    private final int[] uses;
+    private final int[] recent;   // last rows of assignments, as a ring
+    private final int[] candidates;
+    private final int[] neighbors;
+
+    /**
+     * @param imageFinder    ..
+     * @param maxUses        times an image can be used, 0 for any
+     * @param repeatDistance squares an image must be away from itself,
+     *                       0 for any
+     * @param sizeX          number of squares in a row
+     */
+    TileAssigner(ImageFinder imageFinder, int maxUses, int repeatDistance, int sizeX) {
+        this.imageFinder = imageFinder;
+        this.maxUses = maxUses;
+        this.repeatDistance = repeatDistance;
+        this.sizeX = sizeX;
+
+        this.mask = maxUses > 0 ? imageFinder.newMask() : null;
+        this.uses = maxUses > 0 ? new int[imageFinder.size()] : null;
+        this.recent = new int[(repeatDistance + 1) * sizeX];
+        Arrays.fill(recent, -1);
+
+        // Squares before this one within the distance: repeatDistance
+        // rows above, and repeatDistance squares on the left.
+        int window = repeatDistance * (2 * repeatDistance + 1) + repeatDistance;
+        this.neighbors = new int[Math.max(1, Math.min(window + 1, imageFinder.size()))];
+
+        // Usually one of the few nearest ones is not near, so only
+        // those are searched at first.
+        this.candidates = new int[Math.min(firstCandidates, neighbors.length)];
+    }
+
+    /**
+     * Assigns an image to a mosaic square, squares must be assigned
+     * row by row, from left to right.
+     *
+     * @param i          the square in its row
+     * @param j          the row, counted from the top of the whole image
+     * @param descriptor average color or grid of the square, like
+     *                   ImageFinder.searchIndices() wants it.
+     * @return list index of the image, or -1 if there are no images.
+     */
+    int assign(int i, int j, int[] descriptor) {
+        if (mask != null && mask.size() == 0) {
+            // Every image is used up, so they start again
+            mask = imageFinder.newMask();
+            Arrays.fill(uses, 0);
+        }
+
+        int index = choose(i, j, descriptor, candidates);
+        if (index == -2)
+            index = choose(i, j, descriptor, neighbors);
+        if (index < 0)
+            return -1;
+
+        if (uses != null && ++uses[index] >= maxUses)
+            mask.remove(index);
+
+        recent[(j % (repeatDistance + 1)) * sizeX + i] = index;
+        return index;
+    }
+
+    /**
+     * The most similar image which is not near, or the most similar
+     * one if all of them are near, like in a tiny library.
+     *
+     * @return list index, -1 if there are no images, or -2 if all
+     * of them are near and there could be more.
+     */
+    private int choose(int i, int j, int[] descriptor, int[] result) {
+        int found = imageFinder.searchIndices(descriptor, mask, result);
+        if (found == 0)
+            return -1;
+
+        for (int k = 0; k < found; k++) {
+            if (!isNear(result[k], i, j))
+                return result[k];
+        }
+        return found == result.length && result != neighbors ? -2 : result[0];
+    }
+
+    // Whether the image is used within the distance before the square
+    private boolean isNear(int index, int i, int j) {
+        int rows = repeatDistance + 1;
+
+        for (int y = Math.max(0, j - repeatDistance); y <= j; y++) {
+            int start = Math.max(0, i - repeatDistance);
+            int end = y == j ? i : Math.min(sizeX, i + repeatDistance + 1);
+
+            for (int x = start, offset = (y % rows) * sizeX; x < end; x++) {
+                if (recent[offset + x] == index)
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,103 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A tile which fits a big flat region like the sky may be chosen
+ * for hundreds of mosaic squares, so it's a waste to open and reduce
+ * it every time. This class keeps the reduced pixels of tiles, the
+ * least recently used ones are dropped when the cache is bigger than
+ * its budget.
+ */
+class TileCache {
+    private final long budget;
+    private long bytes;
+    private long hits, misses, evictions;
+
+    // Access ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, int[]> tiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param budget is the maximum size of all the cached pixels in bytes.
+     */
+    TileCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * The same tile reduced to another size is another entry.
+     *
+     * @param path   tile's file path
+     * @param width  ..
+     * @param height ..
+     * @return the key of the cache
+     */
+    static String key(String path, int width, int height) {
+        return width + "x" + height + ":" + path;
+    }
+
+    /**
+     * @param key ..
+     * @return reduced pixels, or null if it's not in the cache.
+     */
+    synchronized int[] get(String key) {
+        int[] pixels = tiles.get(key);
+
+        if (pixels == null)
+            misses++;
+        else
+            hits++;
+
+        return pixels;
+    }
+
+    /**
+     * Adds reduced pixels, then drops the least recently used tiles
+     * until we are under the budget again.
+     *
+     * @param key    ..
+     * @param pixels ..
+     */
+    synchronized void put(String key, int[] pixels) {
+        int[] old = tiles.put(key, pixels);
+
+        if (old != null)
+            bytes -= sizeOf(old);
+        bytes += sizeOf(pixels);
+
+        Iterator<Map.Entry<String, int[]>> iterator = tiles.entrySet().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            bytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long sizeOf(int[] pixels) {
+        return 4L * pixels.length;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache: " + tiles.size() + " tiles, " + bytes + " bytes, "
+                + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions";
+    }
+}
@@ -0,0 +1,324 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything we keep about the images of a library, without an object
+ * for every image: colors, norms, file lengths and last modified times
+ * are parallel primitive arrays, and the paths are in a PathTable.
+ * Millions of Image objects cost more in headers and references than
+ * in their values, and a search which goes through the arrays reads
+ * memory one line after another rather than jumping from object to
+ * object.
+ * An image is known by its index, which is the order it was added in,
+ * the same as in index.bin and the atlases.
+ * A store which is read from index.bin doesn't copy anything: its
+ * values are read from the records of the mapped file, and a path is
+ * only decoded when it's asked for.
+ */
+class TileStore {
+    private int[] red;
+    private int[] green;
+    private int[] blue;
+    private int[] norm;
+    private long[] length;
+    private long[] lastModified;
+    private final PathTable paths;
+
+    // Only for a store of index.bin, see TileStore(ByteBuffer, ...)
+    private final ByteBuffer records;
+    private final int offset;
+    private final int recordSize;
+    private final int stringsOffset;
+
+    // Only while an index is written, see setHashes()
+    private long[] contentHash;
+    private long[] dHash;
+    private int size;
+
+    /**
+     * @param capacity number of images we expect, the store
+     *                 grows if there are more.
+     */
+    TileStore(int capacity) {
+        capacity = Math.max(1, capacity);
+        red = new int[capacity];
+        green = new int[capacity];
+        blue = new int[capacity];
+        norm = new int[capacity];
+        length = new long[capacity];
+        lastModified = new long[capacity];
+        paths = new PathTable(capacity);
+
+        records = null;
+        offset = 0;
+        recordSize = 0;
+        stringsOffset = 0;
+    }
+
+    /**
+     * A store which reads its images from index.bin, images can't
+     * be added to it.
+     *
+     * @param buffer        the mapped index.bin
+     * @param offset        where the record of the first image is
+     * @param count         of images
+     * @param recordSize    FileGenerator.RECORD_SIZE, or RECORD_SIZE_V1
+     *                      whose records have no file length and last
+     *                      modified time, they are 0.
+     * @param stringsOffset where the string table starts
+     */
+    TileStore(ByteBuffer buffer, int offset, int count,
+              int recordSize, int stringsOffset) {
+        this.records = buffer;
+        this.offset = offset;
+        this.recordSize = recordSize;
+        this.stringsOffset = stringsOffset;
+        this.size = count;
+        paths = null;
+    }
+
+    // Where the record of an image starts in the mapped file
+    private int record(int index) {
+        return offset + index * recordSize;
+    }
+
+    private int capacity() {
+        return records == null ? red.length : size;
+    }
+
+    /**
+     * @param images Image objects, in the order of the store
+     * @return TileStore object
+     */
+    static TileStore of(List<Image> images) {
+        TileStore tiles = new TileStore(images.size());
+        for (Image image : images)
+            tiles.add(image);
+        return tiles;
+    }
+
+    /**
+     * @param red          ..
+     * @param green        ..
+     * @param blue         ..
+     * @param norm         ..
+     * @param path         ..
+     * @param length       of the file, 0 if we don't know
+     * @param lastModified of the file, 0 if we don't know
+     * @return index of the image
+     */
+    int add(int red, int green, int blue, int norm, String path,
+            long length, long lastModified) {
+        if (records != null)
+            throw new IllegalStateException("Images can't be added to an index");
+        if (size == this.red.length)
+            grow();
+
+        this.red[size] = red;
+        this.green[size] = green;
+        this.blue[size] = blue;
+        this.norm[size] = norm;
+        this.length[size] = length;
+        this.lastModified[size] = lastModified;
+        paths.add(path);
+
+        return size++;
+    }
+
+    /**
+     * Adds the values of an Image object, without its thumbnails.
+     *
+     * @param image ..
+     * @return index of the image
+     */
+    int add(Image image) {
+        int index = add(image.red, image.green, image.blue, image.norm,
+                image.path, image.length, image.lastModified);
+
+        if (image.contentHash != 0 || image.dHash != 0)
+            setHashes(index, image.contentHash, image.dHash);
+        return index;
+    }
+
+    /**
+     * Keeps the hashes of an image, see Deduplicator. The arrays of
+     * the hashes are only made when the first ones are set, so a
+     * store without them, like a loaded library, doesn't pay for them.
+     *
+     * @param index       of the image
+     * @param contentHash ..
+     * @param dHash       ..
+     */
+    void setHashes(int index, long contentHash, long dHash) {
+        if (this.contentHash == null) {
+            this.contentHash = new long[capacity()];
+            this.dHash = new long[capacity()];
+        }
+
+        this.contentHash[index] = contentHash;
+        this.dHash[index] = dHash;
+    }
+
+    private void grow() {
+        int capacity = 2 * size;
+        red = Arrays.copyOf(red, capacity);
+        green = Arrays.copyOf(green, capacity);
+        blue = Arrays.copyOf(blue, capacity);
+        norm = Arrays.copyOf(norm, capacity);
+        length = Arrays.copyOf(length, capacity);
+        lastModified = Arrays.copyOf(lastModified, capacity);
+
+        if (contentHash != null) {
+            contentHash = Arrays.copyOf(contentHash, capacity);
+            dHash = Arrays.copyOf(dHash, capacity);
+        }
+    }
+
+    /**
+     * Frees the room which was kept for more images, the arrays
+     * given before are not the arrays of the store any more.
+     */
+    void trim() {
+        if (records != null)
+            return;
+
+        red = Arrays.copyOf(red, size);
+        green = Arrays.copyOf(green, size);
+        blue = Arrays.copyOf(blue, size);
+        norm = Arrays.copyOf(norm, size);
+        length = Arrays.copyOf(length, size);
+        lastModified = Arrays.copyOf(lastModified, size);
+        paths.trim();
+
+        if (contentHash != null) {
+            contentHash = Arrays.copyOf(contentHash, size);
+            dHash = Arrays.copyOf(dHash, size);
+        }
+    }
+
+    /**
+     * @return a new store with the images which could be
+     * opened, in the same order, without their hashes.
+     */
+    TileStore found() {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (norm(i) > 0)
+                count++;
+        }
+
+        TileStore tiles = new TileStore(count);
+        for (int i = 0; i < size; i++) {
+            if (norm(i) > 0)
+                tiles.add(red(i), green(i), blue(i), norm(i), path(i),
+                        length(i), lastModified(i));
+        }
+        return tiles;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int red(int index) {
+        return records == null ? red[index] : records.get(record(index)) & 0xFF;
+    }
+
+    int green(int index) {
+        return records == null ? green[index] : records.get(record(index) + 1) & 0xFF;
+    }
+
+    int blue(int index) {
+        return records == null ? blue[index] : records.get(record(index) + 2) & 0xFF;
+    }
+
+    int norm(int index) {
+        return records == null ? norm[index] : records.getInt(record(index) + 4);
+    }
+
+    long length(int index) {
+        if (records == null)
+            return length[index];
+        return recordSize < FileGenerator.RECORD_SIZE ? 0 : records.getLong(record(index) + 16);
+    }
+
+    long lastModified(int index) {
+        if (records == null)
+            return lastModified[index];
+        return recordSize < FileGenerator.RECORD_SIZE ? 0 : records.getLong(record(index) + 24);
+    }
+
+    String path(int index) {
+        if (records == null)
+            return paths.get(index);
+
+        // A duplicate, so threads don't move the position of each other
+        ByteBuffer path = records.duplicate();
+        int offset = stringsOffset + records.getInt(record(index) + 8);
+        path.limit(offset + records.getInt(record(index) + 12));
+        path.position(offset);
+        return StandardCharsets.UTF_8.decode(path).toString();
+    }
+
+    // 0 if we don't know them
+    long contentHash(int index) {
+        return contentHash == null ? 0 : contentHash[index];
+    }
+
+    long dHash(int index) {
+        return dHash == null ? 0 : dHash[index];
+    }
+
+    /**
+     * @param index ..
+     * @return a new Image object with the values of the image
+     */
+    Image get(int index) {
+        Image image = new Image(red(index), green(index), blue(index),
+                norm(index), path(index));
+        image.length = length(index);
+        image.lastModified = lastModified(index);
+        image.contentHash = contentHash(index);
+        image.dHash = dHash(index);
+        return image;
+    }
+
+    /**
+     * @return red of every image, the array may be longer than the
+     * store and must not be modified, so is the others. A store of
+     * index.bin makes a new array every time.
+     */
+    int[] reds() {
+        return records == null ? red : values(0);
+    }
+
+    int[] greens() {
+        return records == null ? green : values(1);
+    }
+
+    int[] blues() {
+        return records == null ? blue : values(2);
+    }
+
+    // A color of every image, read from the records
+    private int[] values(int offset) {
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++)
+            values[i] = records.get(record(i) + offset) & 0xFF;
+        return values;
+    }
+
+    /**
+     * @return about how many bytes the store takes on the heap, a store
+     * of index.bin only takes the hashes, if they are read.
+     */
+    long memorySize() {
+        long hashes = contentHash == null ? 0 : 16L * contentHash.length;
+        if (records != null)
+            return hashes;
+
+        return 16L * red.length + 16L * length.length + paths.memorySize() + hashes;
+    }
+}